@@ -0,0 +1,156 @@
+package de.ocrd.olahd.component;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import de.ocrd.olahd.domain.Archive;
+import de.ocrd.olahd.repository.mongo.ArchiveRepository;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Resolves PIDs to CDSTAR archive-IDs without searching CDSTAR if possible.
+ *
+ * Resolved IDs are held in a bounded in-memory cache, keyed by PID and the profiles which were requested in order of
+ * priority. On a cache miss the online archive is taken from the archive-collection in MongoDB if the online profile
+ * has the highest priority. Only the online archive can be answered from there, the profile of the offline archive
+ * (offline or mirror) is not stored in MongoDB. Everything else has to be searched in CDSTAR by the caller and is put
+ * into the cache afterwards.
+ *
+ * Archives which are deleted or change their profile must be invalidated. Deleted archives are remembered for a while,
+ * because the archive-collection is updated after the CDSTAR transaction is committed and may still point to them.
+ *
+ * The invalidation only reaches the cache of the instance which deleted the archive, e.g. a worker importing a new
+ * version deletes the online archive of the previous one. So a cached ID is only used as long as the archive of the PID
+ * in MongoDB still points to it.
+ */
+@Component
+public class ArchiveIdCache {
+
+    private final ArchiveRepository archiveRepository;
+
+    private final String onlineProfile;
+
+    private final Cache<Key, String> cache;
+
+    /** IDs of deleted archives. MongoDB answers pointing to these are ignored */
+    private final Set<String> retired;
+
+    public ArchiveIdCache(
+        ArchiveRepository archiveRepository,
+        @Value("${cdstar.onlineProfile}") String onlineProfile,
+        @Value("${cdstar.idcache.maxSize:10000}") long maxSize,
+        @Value("${cdstar.idcache.expireMinutes:60}") long expireMinutes
+    ) {
+        this.archiveRepository = archiveRepository;
+        this.onlineProfile = onlineProfile;
+        this.cache = CacheBuilder.newBuilder()
+            .maximumSize(maxSize)
+            .expireAfterWrite(expireMinutes, TimeUnit.MINUTES)
+            .build();
+        this.retired = Collections.newSetFromMap(
+            CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(expireMinutes, TimeUnit.MINUTES)
+                .<String, Boolean>build()
+                .asMap()
+        );
+    }
+
+    /**
+     * Get the archive-ID of the first archive of the PID with one of the profiles from the cache or from MongoDB
+     *
+     * @param pid
+     * @param profiles - profiles in order of priority
+     * @return the CDSTAR-ID of the archive or null if it has to be searched in CDSTAR
+     */
+    public String get(String pid, String... profiles) {
+        Key key = new Key(pid, profiles);
+        Archive archive = archiveRepository.findByPid(pid);
+        String archiveId = cache.getIfPresent(key);
+        if (archiveId != null) {
+            if (archive != null
+                    && (archiveId.equals(archive.getOnlineId()) || archiveId.equals(archive.getOfflineId()))) {
+                return archiveId;
+            }
+            // Deleted, possibly by another instance
+            cache.invalidate(key);
+        }
+        if (profiles.length == 0 || !onlineProfile.equals(profiles[0])) {
+            return null;
+        }
+
+        if (archive == null || StringUtils.isBlank(archive.getOnlineId())
+                || retired.contains(archive.getOnlineId())) {
+            return null;
+        }
+        cache.put(key, archive.getOnlineId());
+        return archive.getOnlineId();
+    }
+
+    /**
+     * Remember the archive-ID found for the PID and the profiles. Only existing archives should be added, a PID
+     * without an archive may be imported in the meantime
+     */
+    public void put(String pid, String archiveId, String... profiles) {
+        if (StringUtils.isNotBlank(archiveId) && !retired.contains(archiveId)) {
+            cache.put(new Key(pid, profiles), archiveId);
+        }
+    }
+
+    /**
+     * Remove all entries pointing to this archive
+     */
+    public void invalidate(String archiveId) {
+        cache.asMap().values().removeIf(archiveId::equals);
+    }
+
+    /**
+     * Remove all entries of this PID, e.g. because the profile of one of its archives changed. Then another archive
+     * might be the one with the highest priority
+     */
+    public void invalidatePid(String pid) {
+        cache.asMap().keySet().removeIf(key -> Objects.equals(pid, key.pid));
+    }
+
+    /**
+     * Remove all entries pointing to this archive and do not resolve to it anymore because it was deleted
+     */
+    public void retire(String archiveId) {
+        retired.add(archiveId);
+        invalidate(archiveId);
+    }
+
+    private static final class Key {
+        private final String pid;
+        private final List<String> profiles;
+
+        private Key(String pid, String... profiles) {
+            this.pid = pid;
+            this.profiles = Arrays.asList(profiles);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return Objects.equals(pid, other.pid) && profiles.equals(other.profiles);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(pid, profiles);
+        }
+    }
+}
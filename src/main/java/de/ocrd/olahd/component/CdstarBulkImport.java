@@ -0,0 +1,228 @@
+package de.ocrd.olahd.component;
+
+import de.ocrd.olahd.exceptions.BagitChecksumException;
+import de.ocrd.olahd.utils.ChecksumUtils;
+import de.ocrd.olahd.utils.Utils;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.ZipOutputStream;
+import okhttp3.Credentials;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpServerErrorException;
+
+/**
+ * Uploads all files of an import to a CDSTAR archive with one request.
+ *
+ * The files are streamed as a zip to the archive (PUT on the archive with Content-Type application/zip), CDSTAR unpacks
+ * it into the archive. This replaces one request per file, which is expensive for bags with many small files. CDSTAR
+ * detects the MIME types of the imported files itself. The entries are compressed according to the
+ * {@linkplain ZipCompressionPolicy}, like the zips of downloads.
+ *
+ * The mode is set with `cdstar.ingest.mode`:
+ * - files: upload every file with its own request (default)
+ * - bulk: always use the bulk import
+ * - auto: use the bulk import for bags with at least `cdstar.ingest.bulkMinFiles` files
+ *
+ * If the vault does not support the import of zips, the caller falls back to uploading the files one by one. This is
+ * remembered until the restart.
+ */
+@Component
+public class CdstarBulkImport {
+
+    public enum Mode {
+        FILES, BULK, AUTO
+    }
+
+    /** Responses of CDSTAR which mean that importing a zip is not supported */
+    private static final Set<Integer> UNSUPPORTED = Set.of(
+        HttpStatus.METHOD_NOT_ALLOWED.value(), HttpStatus.UNSUPPORTED_MEDIA_TYPE.value(),
+        HttpStatus.NOT_IMPLEMENTED.value()
+    );
+
+    private static final MediaType ZIP = MediaType.parse("application/zip");
+
+    private final CdstarClient cdstarClient;
+
+    private final String url;
+
+    private final String username;
+
+    private final String password;
+
+    private final String vault;
+
+    private final Mode mode;
+
+    private final int bulkMinFiles;
+
+    private final ZipCompressionPolicy zipCompressionPolicy;
+
+    private volatile boolean supported = true;
+
+    public CdstarBulkImport(
+        CdstarClient cdstarClient,
+        @Value("${cdstar.url}") String url,
+        @Value("${cdstar.username}") String username,
+        @Value("${cdstar.password}") String password,
+        @Value("${cdstar.vault}") String vault,
+        @Value("${cdstar.ingest.mode:files}") String mode,
+        @Value("${cdstar.ingest.bulkMinFiles:100}") int bulkMinFiles,
+        ZipCompressionPolicy zipCompressionPolicy
+    ) {
+        this.cdstarClient = cdstarClient;
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.vault = vault;
+        this.mode = Mode.valueOf(mode.trim().toUpperCase(Locale.ROOT));
+        this.bulkMinFiles = bulkMinFiles;
+        this.zipCompressionPolicy = zipCompressionPolicy;
+    }
+
+    /**
+     * Should an import with this number of files use the bulk import
+     */
+    public boolean isEnabled(int fileCount) {
+        if (!supported) {
+            return false;
+        }
+        switch (mode) {
+            case BULK:
+                return true;
+            case AUTO:
+                return fileCount >= bulkMinFiles;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Stream the files as a zip into the archive.
+     *
+     * The sha512-checksums of the files are verified while they are read. The request fails if a file does not match.
+     *
+     * @param txId      - The transaction-id
+     * @param archiveId - The archive to import the files into
+     * @param baseDir   - Directory the names of the files in the archive are relative to
+     * @param files     - The files to import
+     * @param checksums - sha512 of the files by relative path. Files not contained are not verified
+     * @return false if the vault does not support importing zips. Nothing was imported then
+     * @throws IOException
+     */
+    public boolean importFiles(
+        String txId, String archiveId, Path baseDir, List<Path> files, Map<String, String> checksums
+    ) throws IOException {
+        Request request = new Request.Builder()
+            .url(url + vault + "/" + archiveId)
+            .addHeader("Authorization", Credentials.basic(username, password))
+            .addHeader("X-Transaction", txId)
+            .put(new ZipBody(baseDir, files, checksums, zipCompressionPolicy))
+            .build();
+
+        try (Response response = cdstarClient.commit().newCall(request).execute()) {
+            if (UNSUPPORTED.contains(response.code())) {
+                supported = false;
+                Utils.logWarn(
+                    "CDSTAR does not support importing zips (%d). Files are uploaded one by one from now on",
+                    response.code()
+                );
+                return false;
+            }
+            if (!response.isSuccessful()) {
+                throw new HttpServerErrorException(HttpStatus.valueOf(response.code()),
+                    "Cannot import data to CDSTAR. URL: " + response.request().url());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Zip of the files, written while the request is sent. It can be written more than once, e.g. for retries
+     */
+    private static class ZipBody extends RequestBody {
+
+        private final Path baseDir;
+
+        private final List<Path> files;
+
+        private final Map<String, String> checksums;
+
+        private final ZipCompressionPolicy zipCompressionPolicy;
+
+        ZipBody(
+            Path baseDir, List<Path> files, Map<String, String> checksums, ZipCompressionPolicy zipCompressionPolicy
+        ) {
+            this.baseDir = baseDir;
+            this.files = files;
+            this.checksums = checksums;
+            this.zipCompressionPolicy = zipCompressionPolicy;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return ZIP;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            OutputStream out = sink.outputStream();
+            ZipOutputStream zip = new ZipOutputStream(out);
+            for (Path file : files) {
+                String relativePath = baseDir.relativize(file).toString().replace('\\', '/');
+                MessageDigest md = ChecksumUtils.newSha512();
+                if (zipCompressionPolicy.isStored(relativePath, null)) {
+                    // Stored entries need size and CRC-32 before the content, they are taken from the checksum pass
+                    CRC32 crc = new CRC32();
+                    long size;
+                    try (InputStream in = new CheckedInputStream(
+                        new DigestInputStream(Files.newInputStream(file), md), crc
+                    )) {
+                        size = in.transferTo(OutputStream.nullOutputStream());
+                    }
+                    verify(file, relativePath, md);
+                    zipCompressionPolicy.putNextEntry(zip, relativePath, null, size, crc.getValue());
+                    Files.copy(file, zip);
+                    zip.closeEntry();
+                } else {
+                    zipCompressionPolicy.putNextEntry(zip, relativePath, null, -1, -1);
+                    try (InputStream in = new DigestInputStream(Files.newInputStream(file), md)) {
+                        in.transferTo(zip);
+                    }
+                    zip.closeEntry();
+                    verify(file, relativePath, md);
+                }
+            }
+            // Only finish, the sink is closed by the client
+            zip.finish();
+            zip.flush();
+        }
+
+        private void verify(Path file, String relativePath, MessageDigest md) {
+            String expected = checksums.get(relativePath);
+            if (expected != null && !expected.equals(ChecksumUtils.toHex(md.digest()))) {
+                throw new BagitChecksumException(Collections.singletonList(
+                    "Checksum of file '" + file + "' does not match the manifest anymore"
+                ));
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package de.ocrd.olahd.component;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Shared HTTP client for all calls to CDSTAR.
+ *
+ * Creating a new OkHttpClient for every request means a new connection pool (and TLS handshake) for every call. This
+ * component holds one connection pool and one dispatcher. The clients for the different kinds of operations only differ
+ * in their timeouts, they are derived from the same base client and therefore share pool and dispatcher.
+ */
+@Component
+public class CdstarClient implements MeterBinder, DisposableBean {
+
+    private final OkHttpClient base;
+    private final OkHttpClient searchClient;
+    private final OkHttpClient fileClient;
+    private final OkHttpClient uploadClient;
+    private final OkHttpClient commitClient;
+
+    public CdstarClient(
+        @Value("${cdstar.http.maxIdleConnections:32}") int maxIdleConnections,
+        @Value("${cdstar.http.keepAliveSeconds:300}") long keepAliveSeconds,
+        @Value("${cdstar.http.maxRequests:64}") int maxRequests,
+        @Value("${cdstar.http.maxRequestsPerHost:32}") int maxRequestsPerHost,
+        @Value("${cdstar.http.http2:true}") boolean http2,
+        @Value("${cdstar.http.connectTimeoutSeconds:10}") long connectTimeout,
+        @Value("${cdstar.http.searchTimeoutSeconds:10}") long searchTimeout,
+        @Value("${cdstar.http.fileTimeoutSeconds:30}") long fileTimeout,
+        @Value("${cdstar.http.uploadTimeoutSeconds:30}") long uploadTimeout,
+        @Value("${cdstar.http.commitTimeoutSeconds:600}") long commitTimeout
+    ) {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(maxRequests);
+        dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+            .connectionPool(new ConnectionPool(maxIdleConnections, keepAliveSeconds, TimeUnit.SECONDS))
+            .dispatcher(dispatcher)
+            .connectTimeout(connectTimeout, TimeUnit.SECONDS)
+            .retryOnConnectionFailure(true);
+        if (http2) {
+            // HTTP/2 is only used if the server agrees on it via ALPN, otherwise HTTP/1.1 is used
+            builder.protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+        } else {
+            builder.protocols(Collections.singletonList(Protocol.HTTP_1_1));
+        }
+        this.base = builder.build();
+
+        this.searchClient = withTimeouts(searchTimeout);
+        this.fileClient = withTimeouts(fileTimeout);
+        this.uploadClient = withTimeouts(uploadTimeout);
+        this.commitClient = withTimeouts(commitTimeout);
+    }
+
+    private OkHttpClient withTimeouts(long seconds) {
+        return base.newBuilder()
+            .readTimeout(seconds, TimeUnit.SECONDS)
+            .writeTimeout(seconds, TimeUnit.SECONDS)
+            .build();
+    }
+
+    /** Client for searches and small metadata requests (archive lookups, archive info) */
+    public OkHttpClient search() {
+        return searchClient;
+    }
+
+    /** Client for reading files and archives from CDSTAR */
+    public OkHttpClient file() {
+        return fileClient;
+    }
+
+    /** Client for write requests inside an import: transaction, archive creation, file upload, meta-data */
+    public OkHttpClient upload() {
+        return uploadClient;
+    }
+
+    /** Client for committing transactions. Committing a transaction with many files can take minutes */
+    public OkHttpClient commit() {
+        return commitClient;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        ConnectionPool pool = base.connectionPool();
+        Dispatcher dispatcher = base.dispatcher();
+        Gauge.builder("olahd.cdstar.http.connections", pool, ConnectionPool::connectionCount)
+            .tag("state", "total")
+            .description("Connections to CDSTAR held in the pool")
+            .register(registry);
+        Gauge.builder("olahd.cdstar.http.connections", pool, ConnectionPool::idleConnectionCount)
+            .tag("state", "idle")
+            .description("Idle connections to CDSTAR held in the pool")
+            .register(registry);
+        Gauge.builder("olahd.cdstar.http.calls", dispatcher, Dispatcher::runningCallsCount)
+            .tag("state", "running")
+            .description("Calls to CDSTAR currently executing")
+            .register(registry);
+        Gauge.builder("olahd.cdstar.http.calls", dispatcher, Dispatcher::queuedCallsCount)
+            .tag("state", "queued")
+            .description("Asynchronous calls to CDSTAR waiting for the dispatcher")
+            .register(registry);
+    }
+
+    @Override
+    public void destroy() {
+        base.dispatcher().executorService().shutdown();
+        base.connectionPool().evictAll();
+    }
+}
@@ -0,0 +1,241 @@
+package de.ocrd.olahd.component;
+
+import de.ocrd.olahd.utils.SpillBuffer;
+import de.ocrd.olahd.utils.Utils;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Fetches the files of a multi-file download ahead of the writer.
+ *
+ * While the caller writes one file (e.g. into a zip), the next files of the download are fetched concurrently into
+ * {@link SpillBuffer}s. At most `download.prefetch.window` files per download are fetched ahead, so the memory of a
+ * download is bounded by window * `download.prefetch.memoryThreshold`, larger files are written to disk. The files are
+ * handed to the writer in the requested order.
+ */
+@Component
+public class DownloadPrefetcher implements MeterBinder, DisposableBean {
+
+    /** Fetch one file. Return null if it is not available, it is skipped then */
+    @FunctionalInterface
+    public interface Fetch {
+        SpillBuffer fetch(String path, SpillBuffer buffer) throws IOException;
+    }
+
+    /** Write one fetched file */
+    @FunctionalInterface
+    public interface Write {
+        void write(String path, SpillBuffer buffer) throws IOException;
+    }
+
+    private final ExecutorService executorService;
+
+    private final int window;
+
+    private final long memoryThreshold;
+
+    private final Path spillDir;
+
+    /** Files fetched or being fetched which are not written yet, over all downloads */
+    private final AtomicInteger depth = new AtomicInteger();
+
+    private Counter bytesCounter = Metrics.counter("olahd.download.bytes");
+
+    private Counter filesCounter = Metrics.counter("olahd.download.files");
+
+    public DownloadPrefetcher(
+        @Value("${download.prefetch.threads:16}") int threads,
+        @Value("${download.prefetch.window:8}") int window,
+        @Value("${download.prefetch.memoryThreshold:8388608}") long memoryThreshold,
+        @Value("${download.prefetch.spillDir:#{systemProperties['java.io.tmpdir']}}") String spillDir
+    ) {
+        AtomicInteger counter = new AtomicInteger();
+        this.executorService = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "download-prefetch-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.window = Math.max(1, window);
+        this.memoryThreshold = memoryThreshold;
+        this.spillDir = Paths.get(spillDir);
+    }
+
+    /**
+     * Fetch all files and write them in order. Returns after the last file was written.
+     *
+     * If fetching a file fails, it is skipped. If writing fails, the remaining fetches are stopped and the exception is
+     * thrown.
+     *
+     * @param paths files to fetch in the order they are written
+     * @param fetch loads a file into the provided buffer
+     * @param write writes a fetched file
+     * @throws IOException from the writer
+     */
+    public void fetchInOrder(List<String> paths, Fetch fetch, Write write) throws IOException {
+        Iterator<String> next = paths.iterator();
+        Deque<Prefetch> pending = new ArrayDeque<>();
+        try {
+            while (pending.size() < window && next.hasNext()) {
+                pending.add(submit(next.next(), fetch));
+            }
+            for (String path : paths) {
+                SpillBuffer buffer = await(pending.poll(), path);
+                if (next.hasNext()) {
+                    pending.add(submit(next.next(), fetch));
+                }
+                if (buffer == null) {
+                    continue;
+                }
+                try (buffer) {
+                    write.write(path, buffer);
+                    bytesCounter.increment(buffer.getSize());
+                    filesCounter.increment();
+                } finally {
+                    depth.decrementAndGet();
+                }
+            }
+        } finally {
+            // Only on errors: release the files which are fetched already or still being fetched
+            for (Prefetch prefetch : pending) {
+                prefetch.release();
+            }
+        }
+    }
+
+    private Prefetch submit(String path, Fetch fetch) {
+        depth.incrementAndGet();
+        Prefetch prefetch = new Prefetch(path, fetch);
+        prefetch.future = executorService.submit(prefetch);
+        return prefetch;
+    }
+
+    private SpillBuffer await(Prefetch prefetch, String path) throws IOException {
+        try {
+            SpillBuffer buffer = prefetch.future.get();
+            if (buffer == null) {
+                depth.decrementAndGet();
+            }
+            return buffer;
+        } catch (ExecutionException e) {
+            // Something's wrong with 1 file, the whole process still runs
+            depth.decrementAndGet();
+            Utils.logWarn("Error fetching file for download: " + path, e.getCause());
+            return null;
+        } catch (InterruptedException e) {
+            prefetch.release();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for file " + path);
+        }
+    }
+
+    /**
+     * Fetch of one file. When the download is given up, the buffer is closed by the fetch if it is still running, or
+     * by {@linkplain #release()} if it is done already
+     */
+    private class Prefetch implements Callable<SpillBuffer> {
+
+        private final String path;
+
+        private final Fetch fetch;
+
+        private Future<SpillBuffer> future;
+
+        /** The fetched buffer, kept to close it on release. Guarded by this */
+        private SpillBuffer fetched;
+
+        /** The download was given up. Guarded by this */
+        private boolean released;
+
+        Prefetch(String path, Fetch fetch) {
+            this.path = path;
+            this.fetch = fetch;
+        }
+
+        @Override
+        public SpillBuffer call() throws IOException {
+            SpillBuffer buffer = new SpillBuffer(memoryThreshold, spillDir);
+            SpillBuffer res;
+            try {
+                res = fetch.fetch(path, buffer);
+            } catch (IOException | RuntimeException e) {
+                buffer.close();
+                throw e;
+            }
+            if (res == null) {
+                buffer.close();
+                return null;
+            }
+            synchronized (this) {
+                if (!released) {
+                    fetched = res;
+                    return res;
+                }
+            }
+            // Nobody takes the buffer anymore
+            res.close();
+            return null;
+        }
+
+        /**
+         * Give up the fetch and close its buffer, also if the fetch is still running. Only for buffers not handed to
+         * the writer
+         */
+        void release() {
+            future.cancel(false);
+            SpillBuffer buffer;
+            synchronized (this) {
+                released = true;
+                buffer = fetched;
+                fetched = null;
+            }
+            depth.decrementAndGet();
+            if (buffer != null) {
+                try {
+                    buffer.close();
+                } catch (IOException e) {
+                    Utils.logWarn("Error releasing prefetched file: " + path, e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("olahd.download.prefetch.depth", depth, AtomicInteger::get)
+            .description("Files of downloads fetched ahead of the writer")
+            .register(registry);
+        bytesCounter = Counter.builder("olahd.download.bytes")
+            .description("Bytes written to multi-file downloads")
+            .register(registry);
+        filesCounter = Counter.builder("olahd.download.files")
+            .description("Files written to multi-file downloads")
+            .register(registry);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        executorService.shutdownNow();
+        executorService.awaitTermination(1, TimeUnit.MINUTES);
+    }
+}
@@ -1,25 +1,158 @@
 package de.ocrd.olahd.component;
 
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import java.util.concurrent.*;
-
+/**
+ * Executes the long running background tasks (imports, operandi jobs).
+ *
+ * Tasks are not run in the order they are submitted. Every task has a class and a user. The classes are served in the
+ * order of their priority, within a class the users take turns, so a user submitting many imports cannot delay the
+ * single import of another user for hours. Every class can have its own limit of concurrently running tasks, so a lower
+ * class still gets a thread while a higher class is busy, and e.g. bulk imports cannot take all threads.
+ */
 @Component
-public class ExecutorWrapper implements DisposableBean {
+public class ExecutorWrapper implements DisposableBean, MeterBinder {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExecutorWrapper.class);
+
+    /** Classes of tasks, ordered by priority (highest first) */
+    public enum TaskClass {
+        INTERACTIVE_IMPORT("interactive"),
+        OPERANDI("operandi"),
+        BULK_IMPORT("bulk"),
+        MAINTENANCE("maintenance");
+
+        private final String tag;
+
+        TaskClass(String tag) {
+            this.tag = tag;
+        }
+
+        public String getTag() {
+            return tag;
+        }
+    }
+
+    /** User for tasks not started by a user */
+    public static final String SYSTEM_USER = "system";
 
     private final ExecutorService executorService;
 
-    public ExecutorWrapper() {
-        executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() - 1);
+    private final int threads;
+
+    private final Map<TaskClass, ClassQueue> queues = new EnumMap<>(TaskClass.class);
+
+    /** Number of running tasks of all classes, guarded by this */
+    private int running;
+
+    public ExecutorWrapper(
+        @Value("${executor.threads:0}") int threads,
+        @Value("${executor.maxRunning.interactive:0}") int maxInteractive,
+        @Value("${executor.maxRunning.operandi:0}") int maxOperandi,
+        @Value("${executor.maxRunning.bulk:2}") int maxBulk,
+        @Value("${executor.maxRunning.maintenance:1}") int maxMaintenance
+    ) {
+        this.threads = threads > 0 ? threads : Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        AtomicInteger counter = new AtomicInteger();
+        this.executorService = Executors.newFixedThreadPool(this.threads, runnable -> {
+            Thread thread = new Thread(runnable, "background-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        queues.put(TaskClass.INTERACTIVE_IMPORT, new ClassQueue(TaskClass.INTERACTIVE_IMPORT, maxInteractive));
+        queues.put(TaskClass.OPERANDI, new ClassQueue(TaskClass.OPERANDI, maxOperandi));
+        queues.put(TaskClass.BULK_IMPORT, new ClassQueue(TaskClass.BULK_IMPORT, maxBulk));
+        queues.put(TaskClass.MAINTENANCE, new ClassQueue(TaskClass.MAINTENANCE, maxMaintenance));
     }
 
     public <T> Future<T> submit(Callable<T> task) {
-        return executorService.submit(task);
+        FutureTask<T> future = new FutureTask<>(task);
+        submit(TaskClass.MAINTENANCE, SYSTEM_USER, future);
+        return future;
     }
 
     public void submit(Runnable runnable) {
-        executorService.submit(runnable);
+        submit(TaskClass.MAINTENANCE, SYSTEM_USER, runnable);
+    }
+
+    /**
+     * Queue a task to be run in the background
+     *
+     * @param taskClass - class of the task, determines its priority and concurrency limit
+     * @param username  - user the task is run for. Users take turns within a class
+     * @param runnable  - the task
+     */
+    public void submit(TaskClass taskClass, String username, Runnable runnable) {
+        Task task = new Task(queues.get(taskClass), username != null ? username : SYSTEM_USER, runnable);
+        synchronized (this) {
+            task.queue.add(task);
+        }
+        dispatch();
+    }
+
+    /**
+     * Start queued tasks while there are free threads
+     */
+    private synchronized void dispatch() {
+        while (running < threads && !executorService.isShutdown()) {
+            Task task = next();
+            if (task == null) {
+                return;
+            }
+            running++;
+            task.queue.running++;
+            executorService.execute(() -> execute(task));
+        }
+    }
+
+    /**
+     * Take the next task to be run: the highest class which has queued tasks and is below its limit, and in this class
+     * the next user in turn
+     */
+    private Task next() {
+        for (ClassQueue queue : queues.values()) {
+            if (queue.canStart(threads)) {
+                return queue.poll();
+            }
+        }
+        return null;
+    }
+
+    private void execute(Task task) {
+        task.queue.waitTimer.record(System.nanoTime() - task.submitted, TimeUnit.NANOSECONDS);
+        try {
+            task.runnable.run();
+        } catch (RuntimeException e) {
+            logger.error("Background task of user '{}' failed", task.username, e);
+        } finally {
+            synchronized (this) {
+                running--;
+                task.queue.running--;
+            }
+            dispatch();
+        }
     }
 
     @Override
@@ -27,4 +160,84 @@ public class ExecutorWrapper implements DisposableBean {
         executorService.shutdown();
         executorService.awaitTermination(5, TimeUnit.MINUTES);
     }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        for (ClassQueue queue : queues.values()) {
+            Gauge.builder("olahd.executor.tasks", this, x -> x.countQueued(queue))
+                .tags("class", queue.taskClass.getTag(), "state", "queued")
+                .description("Background tasks waiting for a thread")
+                .register(registry);
+            Gauge.builder("olahd.executor.tasks", this, x -> x.countRunning(queue))
+                .tags("class", queue.taskClass.getTag(), "state", "running")
+                .description("Background tasks running")
+                .register(registry);
+            queue.waitTimer = Timer.builder("olahd.executor.queue.wait")
+                .tag("class", queue.taskClass.getTag())
+                .description("Time a background task waits for a thread")
+                .register(registry);
+        }
+    }
+
+    private synchronized int countQueued(ClassQueue queue) {
+        return queue.size;
+    }
+
+    private synchronized int countRunning(ClassQueue queue) {
+        return queue.running;
+    }
+
+    private static class Task {
+        private final ClassQueue queue;
+        private final String username;
+        private final Runnable runnable;
+        private final long submitted = System.nanoTime();
+
+        private Task(ClassQueue queue, String username, Runnable runnable) {
+            this.queue = queue;
+            this.username = username;
+            this.runnable = runnable;
+        }
+    }
+
+    /**
+     * Queued tasks of one class. Guarded by the ExecutorWrapper
+     */
+    private static class ClassQueue {
+        private final TaskClass taskClass;
+        /** Max. running tasks of this class, 0 for no limit besides the number of threads */
+        private final int maxRunning;
+        /** Tasks per user. The first user is next, users with tasks left are moved to the end */
+        private final LinkedHashMap<String, Deque<Task>> users = new LinkedHashMap<>();
+        private int size;
+        private int running;
+        private Timer waitTimer;
+
+        private ClassQueue(TaskClass taskClass, int maxRunning) {
+            this.taskClass = taskClass;
+            this.maxRunning = maxRunning;
+            this.waitTimer = Metrics.timer("olahd.executor.queue.wait", "class", taskClass.getTag());
+        }
+
+        private void add(Task task) {
+            users.computeIfAbsent(task.username, x -> new ArrayDeque<>()).add(task);
+            size++;
+        }
+
+        private boolean canStart(int threads) {
+            return size > 0 && running < (maxRunning > 0 ? maxRunning : threads);
+        }
+
+        private Task poll() {
+            Iterator<Map.Entry<String, Deque<Task>>> it = users.entrySet().iterator();
+            Map.Entry<String, Deque<Task>> first = it.next();
+            it.remove();
+            Task task = first.getValue().poll();
+            if (!first.getValue().isEmpty()) {
+                users.put(first.getKey(), first.getValue());
+            }
+            size--;
+            return task;
+        }
+    }
 }
@@ -0,0 +1,47 @@
+package de.ocrd.olahd.component;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ConcurrentReferenceHashMap;
+
+/**
+ * Locks within this instance. Sufficient as long as only one instance of the backend is running
+ */
+@Component
+@ConditionalOnProperty(
+    value = "lock.provider",
+    havingValue = "memory",
+    matchIfMissing = true)
+public class InMemoryLockProvider implements LockProvider {
+
+    private final ConcurrentReferenceHashMap<String, ReentrantLock> locks = new ConcurrentReferenceHashMap<>();
+
+    private final AtomicLong tokens = new AtomicLong();
+
+    @Override
+    public MutexFactory.Lock tryLock(String key, Duration maxWait) throws InterruptedException {
+        ReentrantLock lock = locks.compute(key, (k, v) -> v == null ? new ReentrantLock() : v);
+        boolean acquired = maxWait.isZero()
+            ? lock.tryLock()
+            : lock.tryLock(maxWait.toNanos(), TimeUnit.NANOSECONDS);
+        if (!acquired) {
+            return null;
+        }
+        long token = tokens.incrementAndGet();
+        return new MutexFactory.Lock() {
+            @Override
+            public long getFencingToken() {
+                return token;
+            }
+
+            @Override
+            public void close() {
+                lock.unlock();
+            }
+        };
+    }
+}
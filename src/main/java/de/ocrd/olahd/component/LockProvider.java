@@ -0,0 +1,22 @@
+package de.ocrd.olahd.component;
+
+import java.time.Duration;
+
+/**
+ * Provides the locks handed out by the {@linkplain MutexFactory}.
+ *
+ * Selected with `lock.provider`: {@linkplain InMemoryLockProvider} (`memory`, default) locks within this instance only,
+ * {@linkplain MongoLockProvider} (`mongo`) locks across all instances using the same database.
+ */
+public interface LockProvider {
+
+    /**
+     * Try to acquire the lock of the key
+     *
+     * @param key     - what to lock
+     * @param maxWait - how long to wait if the lock is held by someone else. Zero to not wait at all
+     * @return the held lock or null if it was not acquired in time
+     * @throws InterruptedException
+     */
+    MutexFactory.Lock tryLock(String key, Duration maxWait) throws InterruptedException;
+}
@@ -0,0 +1,136 @@
+package de.ocrd.olahd.component;
+
+import de.ocrd.olahd.domain.LockLease;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+/**
+ * Locks across all instances of the backend using the same MongoDB.
+ *
+ * A lock is a {@linkplain LockLease} document with the key as ID. Inserting it fails while another holder's lease has
+ * not expired, so waiting is done by polling with backoff. The lease (`lock.leaseSeconds`) must be longer than any
+ * critical section, it is not renewed. If it expires anyway another holder can get the lock; the fencing token tells
+ * the holders apart and a release only deletes the lease of its own holder. The token is only drawn once the lease is
+ * taken, polling for a held lock does not write to the counter.
+ */
+@Component
+@ConditionalOnProperty(
+    value = "lock.provider",
+    havingValue = "mongo")
+public class MongoLockProvider implements LockProvider {
+
+    private static final Logger logger = LoggerFactory.getLogger(MongoLockProvider.class);
+
+    private static final String TOKEN_COLLECTION = "lockToken";
+
+    private static final long MAX_BACKOFF_MILLIS = 500;
+
+    private final MongoTemplate mongoTemplate;
+
+    private final Duration lease;
+
+    private final String instanceId = ManagementFactory.getRuntimeMXBean().getName();
+
+    public MongoLockProvider(
+        MongoTemplate mongoTemplate,
+        @Value("${lock.leaseSeconds:60}") long leaseSeconds
+    ) {
+        this.mongoTemplate = mongoTemplate;
+        this.lease = Duration.ofSeconds(leaseSeconds);
+        // Remove leases of holders which did not release them, e.g. because the instance was stopped
+        mongoTemplate.indexOps(LockLease.class).ensureIndex(
+            new Index().on("expiresAt", Sort.Direction.ASC).expire(0)
+        );
+    }
+
+    @Override
+    public MutexFactory.Lock tryLock(String key, Duration maxWait) throws InterruptedException {
+        long deadline = System.nanoTime() + maxWait.toNanos();
+        long backoff = 10;
+        while (true) {
+            MutexFactory.Lock lock = attempt(key);
+            if (lock != null) {
+                return lock;
+            }
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return null;
+            }
+            Thread.sleep(Math.min(backoff, remaining));
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    /**
+     * Insert the lease, or take it over if it is expired. The fencing token is assigned after the lease is taken
+     *
+     * @return the held lock or null if the lock is held by someone else
+     */
+    private MutexFactory.Lock attempt(String key) {
+        String owner = instanceId + "/" + Thread.currentThread().getName() + "/" + UUID.randomUUID();
+        Instant now = Instant.now();
+        Query query = new Query(Criteria.where("_id").is(key).and("expiresAt").lt(now));
+        Update update = new Update()
+            .set("owner", owner)
+            .set("token", 0L)
+            .set("expiresAt", now.plus(lease));
+        try {
+            mongoTemplate.upsert(query, update, LockLease.class);
+        } catch (DuplicateKeyException e) {
+            return null;
+        }
+
+        long token = nextToken();
+        Query own = new Query(Criteria.where("_id").is(key).and("owner").is(owner));
+        if (mongoTemplate.updateFirst(own, new Update().set("token", token), LockLease.class).getMatchedCount() == 0) {
+            // Expired and taken over in the meantime, only possible with a lease shorter than a round trip
+            return null;
+        }
+
+        return new MutexFactory.Lock() {
+            @Override
+            public long getFencingToken() {
+                return token;
+            }
+
+            @Override
+            public void close() {
+                if (mongoTemplate.remove(own, LockLease.class).getDeletedCount() == 0) {
+                    logger.warn("Lease of lock '{}' expired before it was released. token: {}", key, token);
+                }
+            }
+        };
+    }
+
+    /**
+     * The fencing tokens are taken from a counter which is never removed, so they increase even if a key is unlocked
+     * and its lease is deleted
+     */
+    private long nextToken() {
+        Document counter = mongoTemplate.findAndModify(
+            new Query(Criteria.where("_id").is("lock")),
+            new Update().inc("value", 1L),
+            FindAndModifyOptions.options().upsert(true).returnNew(true),
+            Document.class,
+            TOKEN_COLLECTION
+        );
+        return ((Number) counter.get("value")).longValue();
+    }
+}
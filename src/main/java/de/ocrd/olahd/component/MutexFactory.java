@@ -1,18 +1,105 @@
 package de.ocrd.olahd.component;
 
+import de.ocrd.olahd.exceptions.LockTimeoutException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.util.ConcurrentReferenceHashMap;
 
+/**
+ * Hands out locks per key.
+ *
+ * {@linkplain #lock(Object)} uses the configured {@linkplain LockProvider}, so it can lock across instances of the
+ * backend. Waiting for a lock is bounded by `lock.maxWaitMillis`. {@linkplain #getMutex(Object)} only locks within
+ * this instance.
+ */
 @Component
-public class MutexFactory<K> {
+public class MutexFactory<K> implements MeterBinder {
+
+    /** A held lock, released with close() */
+    public interface Lock extends AutoCloseable {
+
+        /** Increases with every acquisition of a lock, to tell holders apart whose lease has expired */
+        long getFencingToken();
+
+        @Override
+        void close();
+    }
 
     private ConcurrentReferenceHashMap<K, Object> map;
 
+    private final LockProvider lockProvider;
+
+    private final Duration maxWait;
+
+    private Timer waitTimer = Metrics.timer("olahd.lock.wait");
+
+    private Counter contendedCounter = Metrics.counter("olahd.lock.contended");
+
+    private Counter timeoutCounter = Metrics.counter("olahd.lock.timeouts");
+
     public MutexFactory() {
+        this(new InMemoryLockProvider(), 30000);
+    }
+
+    @Autowired
+    public MutexFactory(LockProvider lockProvider, @Value("${lock.maxWaitMillis:30000}") long maxWaitMillis) {
         this.map = new ConcurrentReferenceHashMap<>();
+        this.lockProvider = lockProvider;
+        this.maxWait = Duration.ofMillis(maxWaitMillis);
     }
 
     public Object getMutex(K key) {
         return this.map.compute(key, (k, v) -> v == null ? new Object() : v);
     }
+
+    /**
+     * Wait for the lock of the key. To be used with try-with-resources:
+     * <pre>try (MutexFactory.Lock lock = mutexFactory.lock(key)) { ... }</pre>
+     *
+     * @param key
+     * @return the held lock
+     * @throws LockTimeoutException if the lock is not acquired within `lock.maxWaitMillis`
+     */
+    public Lock lock(K key) {
+        String name = String.valueOf(key);
+        long start = System.nanoTime();
+        try {
+            Lock lock = lockProvider.tryLock(name, Duration.ZERO);
+            if (lock == null) {
+                contendedCounter.increment();
+                lock = lockProvider.tryLock(name, maxWait);
+            }
+            if (lock == null) {
+                timeoutCounter.increment();
+                throw new LockTimeoutException("Lock not acquired within " + maxWait.toMillis() + "ms: " + name);
+            }
+            return lock;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LockTimeoutException("Interrupted while waiting for lock: " + name, e);
+        } finally {
+            waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        waitTimer = Timer.builder("olahd.lock.wait")
+            .description("Time to acquire a lock")
+            .register(registry);
+        contendedCounter = Counter.builder("olahd.lock.contended")
+            .description("Locks which were held by someone else when requested")
+            .register(registry);
+        timeoutCounter = Counter.builder("olahd.lock.timeouts")
+            .description("Locks not acquired within lock.maxWaitMillis")
+            .register(registry);
+    }
 }
@@ -0,0 +1,176 @@
+package de.ocrd.olahd.component;
+
+import de.ocrd.olahd.controller.importarchive.ImportUtils;
+import de.ocrd.olahd.domain.PooledPid;
+import de.ocrd.olahd.service.PidService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.jodah.failsafe.Failsafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * PIDs created ahead of time, so that an import does not have to wait for the PID-Service.
+ *
+ * The pool is stored in MongoDB and refilled to `pid.pool.size` PIDs in the background. A PID taken from the pool gets
+ * its data by the {@linkplain PidWriteBehind}. If the pool is empty (or disabled with size 0) the PID is created
+ * directly.
+ *
+ * Only one instance refills at a time, guarded by a lock of the {@linkplain LockProvider} (with `lock.provider=mongo`
+ * across all instances). The missing PIDs are created with `pid.pool.refillConcurrency` requests at the same time.
+ */
+@Component
+public class PidPool implements DisposableBean, MeterBinder {
+
+    private static final Logger logger = LoggerFactory.getLogger(PidPool.class);
+
+    /** Data of a PID in the pool till it is used */
+    private static final List<AbstractMap.SimpleImmutableEntry<String, String>> RESERVED = List.of(
+        new AbstractMap.SimpleImmutableEntry<>("OLAHD-STATUS", "reserved")
+    );
+
+    private static final String REFILL_LOCK = "pid-pool-refill";
+
+    private final PidService pidService;
+
+    private final PidWriteBehind pidWriteBehind;
+
+    private final MongoTemplate mongoTemplate;
+
+    private final LockProvider lockProvider;
+
+    private final int size;
+
+    private final ExecutorService creators;
+
+    private Counter missCounter = Metrics.counter("olahd.pid.pool.misses");
+
+    public PidPool(
+        PidService pidService, PidWriteBehind pidWriteBehind, MongoTemplate mongoTemplate, LockProvider lockProvider,
+        @Value("${pid.pool.size:20}") int size,
+        @Value("${pid.pool.refillConcurrency:4}") int refillConcurrency
+    ) {
+        this.pidService = pidService;
+        this.pidWriteBehind = pidWriteBehind;
+        this.mongoTemplate = mongoTemplate;
+        this.lockProvider = lockProvider;
+        this.size = size;
+        AtomicInteger counter = new AtomicInteger();
+        this.creators = Executors.newFixedThreadPool(Math.max(1, refillConcurrency), runnable -> {
+            Thread thread = new Thread(runnable, "pid-pool-refill-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Get a PID for an import
+     *
+     * @param data - data of the PID, written in the background if the PID is taken from the pool
+     * @return the PID
+     * @throws IOException if the pool is empty and the PID cannot be created
+     */
+    public String take(List<AbstractMap.SimpleImmutableEntry<String, String>> data) throws IOException {
+        if (size > 0) {
+            PooledPid pooled = mongoTemplate.findAndRemove(
+                new Query().with(Sort.by("createdAt")), PooledPid.class
+            );
+            if (pooled != null) {
+                pidWriteBehind.update(pooled.getPid(), data);
+                return pooled.getPid();
+            }
+            missCounter.increment();
+        }
+        return Failsafe.with(ImportUtils.RETRY_POLICY).get(() -> pidService.createPid(data));
+    }
+
+    /**
+     * Create PIDs till the pool is full, unless another instance is refilling it already
+     */
+    @Scheduled(fixedDelayString = "${pid.pool.refillMillis:10000}")
+    public void refill() {
+        MutexFactory.Lock lock;
+        try {
+            lock = lockProvider.tryLock(REFILL_LOCK, Duration.ZERO);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (lock == null) {
+            return;
+        }
+        try (lock) {
+            // Counted while holding the lock, so PIDs added by the last refill of another instance are included
+            long missing = size - mongoTemplate.count(new Query(), PooledPid.class);
+            AtomicBoolean failed = new AtomicBoolean();
+            List<Future<?>> creations = new ArrayList<>();
+            for (long i = 0; i < missing && !creators.isShutdown(); i++) {
+                creations.add(creators.submit(() -> create(failed)));
+            }
+            for (Future<?> creation : creations) {
+                try {
+                    creation.get();
+                } catch (ExecutionException e) {
+                    logger.error("Refilling PID pool failed", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Create one PID for the pool. Skipped if creating another one has failed in this refill already
+     */
+    private void create(AtomicBoolean failed) {
+        if (failed.get()) {
+            return;
+        }
+        try {
+            mongoTemplate.insert(new PooledPid(pidService.createPid(RESERVED)));
+        } catch (Exception e) {
+            if (!failed.getAndSet(true)) {
+                logger.warn("Cannot refill PID pool, trying again later", e);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        creators.shutdown();
+        creators.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("olahd.pid.pool.size", mongoTemplate, x -> x.count(new Query(), PooledPid.class))
+            .description("PIDs available in the pool")
+            .register(registry);
+        missCounter = Counter.builder("olahd.pid.pool.misses")
+            .description("PIDs created directly because the pool was empty")
+            .register(registry);
+    }
+}
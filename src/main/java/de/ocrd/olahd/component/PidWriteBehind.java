@@ -0,0 +1,388 @@
+package de.ocrd.olahd.component;
+
+import de.ocrd.olahd.domain.PidUpdate;
+import de.ocrd.olahd.service.PidService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpStatusCodeException;
+
+/**
+ * Writes the data of PIDs in the background.
+ *
+ * Changes are stored in MongoDB as {@linkplain PidUpdate}, so they survive a restart, and collected for
+ * `pid.writeBehind.delayMillis` before they are sent. Changes of the same PID are merged, so a PID which is changed
+ * several times in a row (e.g. the versions of a long chain imported one after another) is written once. Every
+ * `pid.writeBehind.pollMillis` a batch of due updates is claimed and written with `pid.writeBehind.concurrency` requests
+ * at a time. Like imports, updates are claimed with a lease, so every instance can write them. Failed writes are tried
+ * again with exponential backoff, at most `pid.writeBehind.maxAttempts` times. Changes of a PID which does not exist
+ * (anymore) are dropped.
+ *
+ * PIDs are deleted through the same document, so a deletion is sent only after a write of the PID in progress is
+ * finished and no data is written to a deleted PID.
+ */
+@Component
+public class PidWriteBehind implements DisposableBean, MeterBinder {
+
+    private static final Logger logger = LoggerFactory.getLogger(PidWriteBehind.class);
+
+    /** Wait after the first failed write, doubled with every further failure */
+    private static final long FIRST_BACKOFF_SECONDS = 5;
+
+    private final PidService pidService;
+
+    private final MongoTemplate mongoTemplate;
+
+    private final long delayMillis;
+
+    private final int batchSize;
+
+    private final long leaseSeconds;
+
+    private final long maxBackoffSeconds;
+
+    private final int maxAttempts;
+
+    private final ExecutorService writers;
+
+    private Counter writeCounter = Metrics.counter("olahd.pid.writeBehind.writes");
+
+    private Counter errorCounter = Metrics.counter("olahd.pid.writeBehind.errors");
+
+    private Counter dropCounter = Metrics.counter("olahd.pid.writeBehind.dropped");
+
+    private Timer writeTimer = Metrics.timer("olahd.pid.writeBehind.write");
+
+    public PidWriteBehind(
+        PidService pidService, MongoTemplate mongoTemplate,
+        @Value("${pid.writeBehind.delayMillis:2000}") long delayMillis,
+        @Value("${pid.writeBehind.batchSize:50}") int batchSize,
+        @Value("${pid.writeBehind.concurrency:4}") int concurrency,
+        @Value("${pid.writeBehind.leaseSeconds:120}") long leaseSeconds,
+        @Value("${pid.writeBehind.maxBackoffSeconds:600}") long maxBackoffSeconds,
+        @Value("${pid.writeBehind.maxAttempts:20}") int maxAttempts
+    ) {
+        this.pidService = pidService;
+        this.mongoTemplate = mongoTemplate;
+        this.delayMillis = delayMillis;
+        this.batchSize = batchSize;
+        this.leaseSeconds = leaseSeconds;
+        this.maxBackoffSeconds = maxBackoffSeconds;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        AtomicInteger counter = new AtomicInteger();
+        this.writers = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "pid-write-behind-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Replace the data of the PID, like {@linkplain PidService#updatePid(String, List)}
+     */
+    public void update(String pid, List<AbstractMap.SimpleImmutableEntry<String, String>> data) {
+        change(pid, new Update().set("replacement", PidUpdate.Entry.of(data)).set("appended", List.of()));
+    }
+
+    /**
+     * Add data to the PID, like {@linkplain PidService#appendData(String, List)}
+     */
+    public void append(String pid, List<AbstractMap.SimpleImmutableEntry<String, String>> data) {
+        change(pid, new Update().push("appended").each(PidUpdate.Entry.of(data).toArray()));
+    }
+
+    /**
+     * Delete the PID, like {@linkplain PidService#deletePid(String)}. Pending changes of the PID are dropped
+     */
+    public void delete(String pid) {
+        change(pid, new Update()
+            .set("deleted", true)
+            .set("replacement", null)
+            .set("appended", List.of())
+            .set("notBefore", Instant.now())
+            .set("attempts", 0));
+    }
+
+    /**
+     * Merge the change into the pending update of the PID, or create one
+     */
+    private void change(String pid, Update update) {
+        Instant now = Instant.now();
+        update.inc("version", 1).setOnInsert("createdAt", now);
+        if (!update.modifies("notBefore")) {
+            update.setOnInsert("notBefore", now.plusMillis(delayMillis));
+        }
+        if (!update.modifies("attempts")) {
+            update.setOnInsert("attempts", 0);
+        }
+        Query query = new Query(Criteria.where("_id").is(pid));
+        try {
+            mongoTemplate.upsert(query, update, PidUpdate.class);
+        } catch (DuplicateKeyException e) {
+            // Inserted by someone else at the same time, so it exists now
+            mongoTemplate.upsert(query, update, PidUpdate.class);
+        }
+    }
+
+    /**
+     * Write a batch of due updates
+     */
+    @Scheduled(fixedDelayString = "${pid.writeBehind.pollMillis:1000}")
+    public void flush() {
+        List<Future<?>> writes = new ArrayList<>();
+        for (int i = 0; i < batchSize && !writers.isShutdown(); i++) {
+            PidUpdate update = claim();
+            if (update == null) {
+                break;
+            }
+            writes.add(writers.submit(() -> write(update)));
+        }
+        for (Future<?> write : writes) {
+            try {
+                write.get();
+            } catch (ExecutionException e) {
+                logger.error("Writing PID data failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Claim the due update waiting longest
+     *
+     * @return the claimed update or null if there is none
+     */
+    private PidUpdate claim() {
+        Instant now = Instant.now();
+        Query query = new Query(new Criteria().andOperator(
+            Criteria.where("notBefore").lte(now),
+            new Criteria().orOperator(Criteria.where("owner").is(null), Criteria.where("leaseUntil").lt(now))
+        )).with(Sort.by("notBefore"));
+        Update update = new Update()
+            .set("owner", UUID.randomUUID().toString())
+            .set("leaseUntil", now.plusSeconds(leaseSeconds));
+        return mongoTemplate.findAndModify(
+            query, update, FindAndModifyOptions.options().returnNew(true), PidUpdate.class
+        );
+    }
+
+    private void write(PidUpdate claimed) {
+        // Read the update again right before sending it, it might have been deleted in the meantime
+        PidUpdate update = mongoTemplate.findOne(
+            new Query(Criteria.where("_id").is(claimed.getPid()).and("owner").is(claimed.getOwner())),
+            PidUpdate.class
+        );
+        if (update == null) {
+            // Claimed by someone else because the lease expired
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            if (update.isDeleted()) {
+                deletePid(update.getPid());
+            } else if (update.getReplacement() != null) {
+                pidService.updatePid(update.getPid(), update.getData());
+            } else if (!update.getAppended().isEmpty()) {
+                pidService.appendData(update.getPid(), update.getData());
+            }
+        } catch (Exception e) {
+            errorCounter.increment();
+            if (isNotFound(e)) {
+                drop(update, "the PID does not exist", e);
+            } else {
+                failed(update, e);
+            }
+            return;
+        } finally {
+            writeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+        writeCounter.increment();
+        completed(update);
+    }
+
+    /**
+     * Remove the written update. If it was changed in the meantime, keep the newer changes and release it
+     */
+    private void completed(PidUpdate written) {
+        while (true) {
+            Query unchanged = new Query(
+                Criteria.where("_id").is(written.getPid())
+                    .and("owner").is(written.getOwner())
+                    .and("version").is(written.getVersion())
+            );
+            if (mongoTemplate.remove(unchanged, PidUpdate.class).getDeletedCount() > 0) {
+                return;
+            }
+
+            PidUpdate current = mongoTemplate.findOne(
+                new Query(Criteria.where("_id").is(written.getPid()).and("owner").is(written.getOwner())),
+                PidUpdate.class
+            );
+            if (current == null) {
+                // Cancelled, or claimed by someone else because the lease expired
+                return;
+            }
+            Instant now = Instant.now();
+            Update update = new Update()
+                .unset("owner")
+                .unset("leaseUntil")
+                .set("attempts", 0)
+                .set("createdAt", now)
+                .set("notBefore", now);
+            List<PidUpdate.Entry> appended = current.appendedAfter(written);
+            if (appended != null) {
+                update.set("appended", appended);
+            }
+            Query same = new Query(
+                Criteria.where("_id").is(written.getPid())
+                    .and("owner").is(written.getOwner())
+                    .and("version").is(current.getVersion())
+            );
+            if (mongoTemplate.updateFirst(same, update, PidUpdate.class).getMatchedCount() > 0) {
+                return;
+            }
+        }
+    }
+
+    private void deletePid(String pid) throws IOException {
+        try {
+            pidService.deletePid(pid);
+        } catch (Exception e) {
+            if (!isNotFound(e)) {
+                throw e;
+            }
+            // Deleted already
+        }
+    }
+
+    /**
+     * The PID-Service answered that the PID does not exist
+     */
+    static boolean isNotFound(Exception e) {
+        if (!(e instanceof HttpStatusCodeException)) {
+            return false;
+        }
+        HttpStatus status = ((HttpStatusCodeException) e).getStatusCode();
+        return status == HttpStatus.NOT_FOUND || status == HttpStatus.GONE;
+    }
+
+    /**
+     * Give up the update, it is not written. If it was changed in the meantime, e.g. the PID is to be deleted now, the
+     * newer changes are released to be written
+     */
+    private void drop(PidUpdate update, String reason, Exception e) {
+        dropCounter.increment();
+        logger.error("Dropping changes of PID '{}', {}", update.getPid(), reason, e);
+        Query claimed = new Query(Criteria.where("_id").is(update.getPid()).and("owner").is(update.getOwner()));
+        Query unchanged = Query.of(claimed).addCriteria(Criteria.where("version").is(update.getVersion()));
+        if (mongoTemplate.remove(unchanged, PidUpdate.class).getDeletedCount() == 0) {
+            mongoTemplate.updateFirst(
+                claimed,
+                new Update().unset("owner").unset("leaseUntil").set("attempts", 0).set("notBefore", Instant.now()),
+                PidUpdate.class
+            );
+        }
+    }
+
+    /**
+     * Release the update to be tried again after the backoff, or drop it after too many failures
+     */
+    private void failed(PidUpdate update, Exception e) {
+        int attempts = update.getAttempts() + 1;
+        if (attempts >= maxAttempts) {
+            drop(update, "writing failed " + attempts + " times", e);
+            return;
+        }
+        long backoff = backoffSeconds(attempts, maxBackoffSeconds);
+        logger.error(
+            "Writing data of PID '{}' failed {} times, trying again in {}s", update.getPid(), attempts, backoff, e
+        );
+        mongoTemplate.updateFirst(
+            new Query(Criteria.where("_id").is(update.getPid()).and("owner").is(update.getOwner())),
+            new Update()
+                .unset("owner")
+                .unset("leaseUntil")
+                .set("attempts", attempts)
+                .set("notBefore", Instant.now().plusSeconds(backoff)),
+            PidUpdate.class
+        );
+    }
+
+    /**
+     * Time to wait after the given number of failed writes in a row
+     */
+    static long backoffSeconds(int attempts, long maxBackoffSeconds) {
+        int doublings = Math.min(Math.max(attempts - 1, 0), 30);
+        return Math.min(FIRST_BACKOFF_SECONDS << doublings, maxBackoffSeconds);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        // Updates not written stay in the database and are written after the restart
+        writers.shutdown();
+        writers.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("olahd.pid.writeBehind.pending", mongoTemplate, x -> x.count(new Query(), PidUpdate.class))
+            .description("PIDs with changes not written yet")
+            .register(registry);
+        Gauge.builder("olahd.pid.writeBehind.lag", this, PidWriteBehind::lagSeconds)
+            .description("Age of the oldest change not written yet")
+            .baseUnit("seconds")
+            .register(registry);
+        writeCounter = Counter.builder("olahd.pid.writeBehind.writes")
+            .description("Updates written to the PID-Service")
+            .register(registry);
+        errorCounter = Counter.builder("olahd.pid.writeBehind.errors")
+            .description("Failed writes to the PID-Service")
+            .register(registry);
+        dropCounter = Counter.builder("olahd.pid.writeBehind.dropped")
+            .description("Updates given up because the PID does not exist or writing failed too often")
+            .register(registry);
+        writeTimer = Timer.builder("olahd.pid.writeBehind.write")
+            .description("Time to write the changes of a PID to the PID-Service")
+            .register(registry);
+    }
+
+    private double lagSeconds() {
+        PidUpdate oldest = mongoTemplate.findOne(new Query().with(Sort.by("createdAt")), PidUpdate.class);
+        if (oldest == null) {
+            return 0;
+        }
+        return Duration.between(oldest.getCreatedAt(), Instant.now()).toMillis() / 1000.0;
+    }
+}
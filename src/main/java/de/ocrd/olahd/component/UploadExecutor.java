@@ -0,0 +1,121 @@
+package de.ocrd.olahd.component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Executes the file uploads of imports concurrently.
+ *
+ * The number of threads of this executor is the global limit of concurrent uploads over all running imports. The
+ * number of concurrent uploads of a single import is limited additionally, so that one large import cannot take all
+ * threads. When one upload fails the remaining uploads of this import are not started anymore, uploads which are
+ * already running are finished.
+ */
+@Component
+public class UploadExecutor implements DisposableBean {
+
+    /** A single upload. Can throw IOExceptions like the upload functions of the archive manager do */
+    @FunctionalInterface
+    public interface UploadTask {
+        void run() throws IOException;
+    }
+
+    private final ExecutorService executorService;
+
+    private final int importConcurrency;
+
+    public UploadExecutor(
+        @Value("${cdstar.upload.globalConcurrency:16}") int globalConcurrency,
+        @Value("${cdstar.upload.concurrency:4}") int importConcurrency
+    ) {
+        AtomicInteger counter = new AtomicInteger();
+        this.executorService = Executors.newFixedThreadPool(Math.max(1, globalConcurrency), runnable -> {
+            Thread thread = new Thread(runnable, "cdstar-upload-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.importConcurrency = Math.max(1, importConcurrency);
+    }
+
+    /**
+     * Run all tasks and wait for them to finish. At most `cdstar.upload.concurrency` tasks are run at the same time.
+     *
+     * @param tasks the uploads of one import
+     * @throws IOException the first error that occurred. Other errors are added as suppressed exceptions
+     */
+    public void runAll(Iterable<UploadTask> tasks) throws IOException {
+        Semaphore permits = new Semaphore(importConcurrency);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Future<?>> futures = new ArrayList<>();
+
+        try {
+            for (UploadTask task : tasks) {
+                permits.acquire();
+                if (failure.get() != null) {
+                    permits.release();
+                    break;
+                }
+                futures.add(executorService.submit(() -> {
+                    try {
+                        if (failure.get() == null) {
+                            task.run();
+                        }
+                    } catch (Throwable t) {
+                        if (!failure.compareAndSet(null, t)) {
+                            failure.get().addSuppressed(t);
+                        }
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, e);
+        }
+
+        // Wait for every upload which was started. Queued uploads see the failure and return immediately. The caller
+        // might roll back the transaction afterwards, this should not happen while uploads are still running
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                // errors are collected in the task itself
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure.compareAndSet(null, e);
+                break;
+            }
+        }
+
+        Throwable t = failure.get();
+        if (t == null) {
+            return;
+        } else if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new IOException("Upload failed", t);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        executorService.shutdown();
+        executorService.awaitTermination(1, TimeUnit.MINUTES);
+    }
+}
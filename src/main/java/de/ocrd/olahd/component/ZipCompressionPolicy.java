@@ -0,0 +1,124 @@
+package de.ocrd.olahd.component;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Decides how an entry of a zip created by the backend is compressed.
+ *
+ * Already compressed content (jpeg, png, jp2, ...) does not shrink, deflating it only costs CPU. Such entries are
+ * stored. Text (xml, txt, json, ...) is deflated with a configurable level, everything else with the default level.
+ * The content type is checked first, the file extension if the content type is unknown or not specific.
+ */
+@Component
+public class ZipCompressionPolicy {
+
+    private static final Set<String> TEXT_EXTENSIONS = Set.of("xml", "txt", "json", "html", "htm", "csv", "md");
+
+    private final Set<String> storedTypes;
+
+    private final Set<String> storedExtensions;
+
+    private final int textLevel;
+
+    private final int defaultLevel;
+
+    public ZipCompressionPolicy(
+        @Value("${download.zip.storedTypes:image/jpeg,image/jp2,image/jpx,image/png,image/gif,image/webp,application/zip,application/gzip,application/pdf}")
+        String storedTypes,
+        @Value("${download.zip.storedExtensions:jpg,jpeg,jp2,jpx,j2k,png,gif,webp,zip,gz,pdf}")
+        String storedExtensions,
+        @Value("${download.zip.textLevel:6}") int textLevel,
+        @Value("${download.zip.defaultLevel:-1}") int defaultLevel
+    ) {
+        this.storedTypes = toSet(storedTypes);
+        this.storedExtensions = toSet(storedExtensions);
+        this.textLevel = textLevel;
+        this.defaultLevel = defaultLevel;
+    }
+
+    private static Set<String> toSet(String commaSeparated) {
+        return Arrays.stream(StringUtils.defaultString(commaSeparated).split(","))
+            .map(String::trim)
+            .filter(StringUtils::isNotEmpty)
+            .map(x -> x.toLowerCase(Locale.ROOT))
+            .collect(Collectors.toSet());
+    }
+
+    /**
+     * Should the entry be stored without compression
+     *
+     * @param path        - name of the entry
+     * @param contentType - MIME type, can be null
+     */
+    public boolean isStored(String path, String contentType) {
+        String mimeType = baseType(contentType);
+        if (mimeType != null && storedTypes.contains(mimeType)) {
+            return true;
+        }
+        return storedExtensions.contains(extension(path));
+    }
+
+    /**
+     * Deflate level for an entry which is not stored
+     *
+     * @param path        - name of the entry
+     * @param contentType - MIME type, can be null
+     */
+    public int level(String path, String contentType) {
+        String mimeType = baseType(contentType);
+        boolean text = mimeType != null && (mimeType.startsWith("text/") || mimeType.endsWith("/xml")
+            || mimeType.endsWith("+xml") || mimeType.equals("application/json"));
+        if (text || TEXT_EXTENSIONS.contains(extension(path))) {
+            return textLevel;
+        }
+        return defaultLevel;
+    }
+
+    /**
+     * Begin a new entry in the zip compressed according to this policy.
+     *
+     * Stored entries need size and CRC-32 before the content is written.
+     *
+     * @param zip         - the zip to write to
+     * @param path        - name of the entry
+     * @param contentType - MIME type, can be null
+     * @param size        - size of the content
+     * @param crc         - CRC-32 of the content
+     * @throws IOException
+     */
+    public void putNextEntry(ZipOutputStream zip, String path, String contentType, long size, long crc)
+            throws IOException {
+        ZipEntry entry = new ZipEntry(path);
+        if (isStored(path, contentType)) {
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(size);
+            entry.setCompressedSize(size);
+            entry.setCrc(crc);
+        } else {
+            entry.setMethod(ZipEntry.DEFLATED);
+            zip.setLevel(level(path, contentType));
+        }
+        zip.putNextEntry(entry);
+    }
+
+    private static String baseType(String contentType) {
+        if (StringUtils.isBlank(contentType)) {
+            return null;
+        }
+        return contentType.split(";", 2)[0].trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static String extension(String path) {
+        return FilenameUtils.getExtension(StringUtils.defaultString(path)).toLowerCase(Locale.ROOT);
+    }
+}
@@ -1,6 +1,7 @@
 package de.ocrd.olahd.controller;
 
 import de.ocrd.olahd.domain.ResponseMessage;
+import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpHeaders;
@@ -30,8 +31,16 @@ public class ExceptionHandlerService extends ResponseEntityExceptionHandler {
         String message = ex.getStatusText();
         String uri = request.getRequest().getRequestURI();
 
+        // A range request which cannot be served must tell the length of the file, a rejected import when to retry
+        HttpHeaders headers = new HttpHeaders();
+        for (String header : List.of(HttpHeaders.CONTENT_RANGE, HttpHeaders.RETRY_AFTER)) {
+            if (ex.getResponseHeaders() != null && ex.getResponseHeaders().containsKey(header)) {
+                headers.addAll(header, ex.getResponseHeaders().get(header));
+            }
+        }
+
         // Return the error message
-        return new ResponseEntity<>(new ResponseMessage(status, message, uri), status);
+        return new ResponseEntity<>(new ResponseMessage(status, message, uri), headers, status);
     }
 
     @ExceptionHandler({Exception.class, HttpServerErrorException.class})
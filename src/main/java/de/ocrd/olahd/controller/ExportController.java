@@ -3,11 +3,13 @@ package de.ocrd.olahd.controller;
 import de.ocrd.olahd.domain.ArchiveStatus;
 import de.ocrd.olahd.domain.DownloadRequest;
 import de.ocrd.olahd.domain.ExportRequest;
-import de.ocrd.olahd.domain.HttpFile;
+import de.ocrd.olahd.domain.HttpFileStream;
 import de.ocrd.olahd.domain.ResponseMessage;
 import de.ocrd.olahd.msg.ErrMsg;
+import de.ocrd.olahd.repository.mongo.ArchiveRepository;
 import de.ocrd.olahd.repository.mongo.ExportRequestRepository;
 import de.ocrd.olahd.service.ArchiveManagerService;
+import de.ocrd.olahd.utils.HttpCacheUtils;
 import de.ocrd.olahd.utils.MetsWebConverter;
 import de.ocrd.olahd.utils.Utils;
 import io.swagger.annotations.Api;
@@ -24,9 +26,8 @@ import java.util.Map;
 import javax.servlet.http.HttpServletRequest;
 import okhttp3.Headers;
 import okhttp3.Response;
-import org.springframework.core.io.ByteArrayResource;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.InputStreamResource;
-import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -34,9 +35,11 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import springfox.documentation.annotations.ApiIgnore;
 
@@ -48,12 +51,36 @@ public class ExportController {
 
     private final ExportRequestRepository exportRequestRepository;
 
+    private final ArchiveRepository archiveRepository;
+
+    /** Size of the buffer used to stream a file from the archive to the user */
+    @Value("${export.bufferSize:65536}")
+    private int bufferSize;
+
     public ExportController(
         ArchiveManagerService archiveManagerService,
-        ExportRequestRepository exportRequestRepository
+        ExportRequestRepository exportRequestRepository,
+        ArchiveRepository archiveRepository
     ) {
         this.archiveManagerService = archiveManagerService;
         this.exportRequestRepository = exportRequestRepository;
+        this.archiveRepository = archiveRepository;
+    }
+
+    /**
+     * ETag for content of an archive addressed by PID. The content never changes because new data always gets a new
+     * PID.
+     *
+     * @param endpoint - name of the endpoint, different endpoints can deliver different representations
+     * @param pid
+     * @param path     - path of the content inside the archive
+     * @return the ETag or null if the PID is not the PID of an archive
+     */
+    String immutableEtag(String endpoint, String pid, String path) {
+        if (archiveRepository.findByPid(pid) == null) {
+            return null;
+        }
+        return HttpCacheUtils.immutableEtag(endpoint, pid, path);
     }
 
     @ApiOperation(value = "Quickly export a ZIP file via PID. This ZIP file only contains files stored on hard disks.")
@@ -159,17 +186,18 @@ public class ExportController {
     })
     @GetMapping(value = "/download-file", produces = { MediaType.APPLICATION_XML_VALUE,
         MediaType.TEXT_PLAIN_VALUE, MediaType.APPLICATION_OCTET_STREAM_VALUE })
-    public ResponseEntity<Resource> downloadFile(
+    public ResponseEntity<StreamingResponseBody> downloadFile(
         @ApiParam(value = "PID or internal ID of the archive.", required = true) @RequestParam
         String id,
         @ApiParam(value = "Is this an internal ID (CDStar-ID) or not (PID, PPN).", required = true) @RequestParam(defaultValue = "false")
         boolean internalId,
         @ApiParam(value = "Path to the requested file", required = true) @RequestParam
-        String path
+        String path,
+        @ApiIgnore @RequestHeader
+        HttpHeaders requestHeaders
     ) throws IOException {
 
-        HttpFile httpFile = archiveManagerService.getFile(id, path, false, internalId);
-        ByteArrayResource resource = new ByteArrayResource(httpFile.getContent());
+        HttpFileStream httpFile = archiveManagerService.getFileStream(id, path, internalId, requestHeaders);
 
         HttpHeaders headers = httpFile.getHeaders();
 
@@ -181,14 +209,35 @@ public class ExportController {
         String contentType = headers.getContentType() != null ? headers.getContentType().toString()
             : "application/octet-stream";
 
-        // Set charset
-        contentType += ";charset=utf-8";
+        // Set charset. Not for partial responses, the content-type may be multipart/byteranges
+        if (httpFile.getStatus() != HttpStatus.PARTIAL_CONTENT.value()) {
+            contentType += ";charset=utf-8";
+        }
 
         long contentLength = headers.getContentLength();
 
-        return ResponseEntity.ok().header(HttpHeaders.CONTENT_DISPOSITION, contentDisposition)
-            .header(HttpHeaders.CONTENT_TYPE, contentType)
-            .header(HttpHeaders.CONTENT_LENGTH, contentLength + "").body(resource);
+        // Stream the file from the archive to the user, only the buffer is held in memory
+        StreamingResponseBody stream = outputStream -> {
+            try (httpFile) {
+                InputStream inputStream = httpFile.getContent();
+                byte[] data = new byte[bufferSize];
+                int numberOfBytesToWrite;
+                while ((numberOfBytesToWrite = inputStream.read(data, 0, data.length)) != -1) {
+                    outputStream.write(data, 0, numberOfBytesToWrite);
+                }
+            }
+        };
+
+        ResponseEntity.BodyBuilder builder = rangeResponse(
+                httpFile.getStatus(), headers.getFirst(HttpHeaders.CONTENT_RANGE),
+                headers.getFirst(HttpHeaders.ACCEPT_RANGES)
+            )
+            .header(HttpHeaders.CONTENT_DISPOSITION, contentDisposition)
+            .header(HttpHeaders.CONTENT_TYPE, contentType);
+        if (contentLength >= 0) {
+            builder.header(HttpHeaders.CONTENT_LENGTH, contentLength + "");
+        }
+        return builder.body(stream);
     }
 
     static final String REGEX_IMAGE_ID = "^(.*?)&.*?path=([^\\s]+)$";
@@ -202,9 +251,11 @@ public class ExportController {
     })
     @GetMapping(value = "/download-image", produces = { MediaType.APPLICATION_XML_VALUE,
         MediaType.TEXT_PLAIN_VALUE, MediaType.APPLICATION_OCTET_STREAM_VALUE })
-    public ResponseEntity<Resource> downloadImage(
+    public ResponseEntity<StreamingResponseBody> downloadImage(
         @ApiParam(value = "Image id used by go-iiif image server", required = true) @RequestParam("id")
-        String imageId
+        String imageId,
+        @ApiIgnore @RequestHeader
+        HttpHeaders requestHeaders
     ) throws IOException {
         String pid = null;
         String path = null;
@@ -215,7 +266,28 @@ public class ExportController {
         } else {
             throw new HttpClientErrorException(HttpStatus.UNPROCESSABLE_ENTITY, ErrMsg.CANNOT_PARSE_IMAGE_ID);
         }
-        return this.downloadFile(pid, false, path);
+        return this.downloadFile(pid, false, path, requestHeaders);
+    }
+
+    /**
+     * Start a response for a file which might be only partially returned because of a range request.
+     *
+     * Status, Content-Range and Accept-Ranges are taken from the archive's response.
+     *
+     * @param status       200 or 206
+     * @param contentRange Content-Range of the archive's response. Can be null
+     * @param acceptRanges Accept-Ranges of the archive's response. Can be null
+     * @return
+     */
+    static ResponseEntity.BodyBuilder rangeResponse(int status, String contentRange, String acceptRanges) {
+        ResponseEntity.BodyBuilder builder = ResponseEntity.status(status);
+        if (contentRange != null) {
+            builder.header(HttpHeaders.CONTENT_RANGE, contentRange);
+        }
+        if (acceptRanges != null) {
+            builder.header(HttpHeaders.ACCEPT_RANGES, acceptRanges);
+        }
+        return builder;
     }
 
     /**
@@ -278,7 +350,9 @@ public class ExportController {
     @GetMapping(value = "/export/mets", produces = { MediaType.APPLICATION_OCTET_STREAM_VALUE })
     public ResponseEntity<InputStreamResource> exportMetsfile(
         @ApiParam(value = "The PID/PPA of the work.", required = true) @RequestParam
-        String id
+        String id,
+        @ApiIgnore
+        WebRequest webRequest
     ) throws IOException {
         if (id.isBlank()) {
             throw new HttpClientErrorException(
@@ -286,6 +360,12 @@ public class ExportController {
             );
         }
 
+        // The METS of a PID never changes, so the archive is not needed to answer a conditional request
+        String etag = immutableEtag("export/mets", id, "");
+        if (etag != null && webRequest.checkNotModified(etag)) {
+            return null;
+        }
+
         Map<String, String> bagInfoMap;
         try {
             bagInfoMap = archiveManagerService.getBagInfoTxt(id);
@@ -314,7 +394,11 @@ public class ExportController {
         }
         Headers headers = res.headers();
 
-        return ResponseEntity.ok()
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok();
+        if (etag != null) {
+            builder.eTag(etag).header(HttpHeaders.CACHE_CONTROL, HttpCacheUtils.CACHE_CONTROL_IMMUTABLE);
+        }
+        return builder
             .contentType(MediaType.parseMediaType(headers.get(HttpHeaders.CONTENT_TYPE)))
             .header(HttpHeaders.CONTENT_LENGTH, headers.get(HttpHeaders.CONTENT_LENGTH))
             .body(new InputStreamResource(res.body().byteStream()));
@@ -473,11 +557,10 @@ public class ExportController {
      * been processed with the 'export-request' operation.
      * {@linkplain #fullExportRequest(String, Principal)}.
      *
-     * `exportFile` vs `downloadFile`: the latter downloads the file into memory and then sends it to the user.
-     * Additionally it can be used with the internal (CDStar-) id. It also searches in mirror profile if a pid was
-     * provided and the archive is not available online.
-     * `exportFile` streams the file from cdstar to the user without putting it into olahd's memory in between. It can
-     * only be used with the PID and only delivers files available online.
+     * `exportFile` vs `downloadFile`: both stream the file from cdstar to the user without putting it into olahd's
+     * memory in between. `downloadFile` can additionally be used with the internal (CDStar-) id. It also searches in
+     * mirror profile if a pid was provided and the archive is not available online.
+     * `exportFile` can only be used with the PID and only delivers files available online.
      *
      *
      * @param id   PID or PPA
@@ -494,7 +577,11 @@ public class ExportController {
         @ApiParam(value = "The PID/PPA of the work.", required = true) @RequestParam
         String id,
         @ApiParam(value = "Path to file.", required = true) @RequestParam
-        String path
+        String path,
+        @ApiIgnore @RequestHeader
+        HttpHeaders requestHeaders,
+        @ApiIgnore
+        WebRequest webRequest
     ) throws IOException {
         if (id.isBlank()) {
             throw new HttpClientErrorException(
@@ -506,9 +593,16 @@ public class ExportController {
             );
         }
 
+        String etag = immutableEtag("export/file", id, path);
+        if (etag != null && webRequest.checkNotModified(etag)) {
+            return null;
+        }
+
         Response res;
         try {
-            res = archiveManagerService.exportFile(id, Paths.get("data", path).toString());
+            res = archiveManagerService.exportFile(
+                id, Paths.get("data", path).toString(), HttpCacheUtils.rangeHeaders(requestHeaders, etag)
+            );
         } catch (HttpClientErrorException e) {
             if (HttpStatus.NOT_FOUND == e.getStatusCode()) {
                 String msg = e.getMessage().contains(ErrMsg.ARCHIVE_NOT_FOUND) ? ErrMsg.ID_NOT_FOUND
@@ -520,7 +614,13 @@ public class ExportController {
 
         Headers headers = res.headers();
 
-        return ResponseEntity.ok()
+        ResponseEntity.BodyBuilder builder = rangeResponse(
+            res.code(), headers.get(HttpHeaders.CONTENT_RANGE), headers.get(HttpHeaders.ACCEPT_RANGES)
+        );
+        if (etag != null) {
+            builder.eTag(etag).header(HttpHeaders.CACHE_CONTROL, HttpCacheUtils.CACHE_CONTROL_IMMUTABLE);
+        }
+        return builder
             .contentType(MediaType.parseMediaType(headers.get(HttpHeaders.CONTENT_TYPE)))
             .header(HttpHeaders.CONTENT_LENGTH, headers.get(HttpHeaders.CONTENT_LENGTH))
             .body(new InputStreamResource(res.body().byteStream()));
@@ -5,6 +5,7 @@ import de.ocrd.olahd.msg.ErrMsg;
 import de.ocrd.olahd.repository.mongo.ArchiveRepository;
 import de.ocrd.olahd.service.ArchiveManagerService;
 import de.ocrd.olahd.service.S3Service;
+import de.ocrd.olahd.utils.HttpCacheUtils;
 import de.ocrd.olahd.utils.MetsWebConverter;
 import de.ocrd.olahd.utils.Utils;
 import io.swagger.annotations.Api;
@@ -17,6 +18,7 @@ import java.io.InputStream;
 import java.nio.file.Paths;
 import java.security.Principal;
 import javax.servlet.http.HttpServletRequest;
+import okhttp3.Headers;
 import okhttp3.Response;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpHeaders;
@@ -24,11 +26,14 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import springfox.documentation.annotations.ApiIgnore;
 
 @Api(description = "This endpoint is used to provide IIIF-Manifests and related files for the TIFY viewer")
 @RestController
@@ -64,7 +69,9 @@ public class IiifController {
     public ResponseEntity<String> downloadManifest(
         HttpServletRequest request,
         @ApiParam(value = "The PID/PPA of the work.", required = true) @RequestParam
-        String id
+        String id,
+        @ApiIgnore
+        WebRequest webRequest
     ) throws IOException {
         if (id.isBlank()) {
             throw new HttpClientErrorException(
@@ -86,8 +93,17 @@ public class IiifController {
             );
         }
         String baseUrl = Utils.getBaseUrl(request);
+        String body = replaceHostBaseUrl(manifest, baseUrl);
+
+        // The manifest can be regenerated, so it is validated by its content
+        String etag = HttpCacheUtils.etag(body);
+        if (webRequest.checkNotModified(etag)) {
+            return null;
+        }
         return ResponseEntity.ok().contentType(MediaType.parseMediaType("application/json"))
-            .body(replaceHostBaseUrl(manifest, baseUrl));
+            .eTag(etag)
+            .header(HttpHeaders.CACHE_CONTROL, HttpCacheUtils.CACHE_CONTROL_REVALIDATE)
+            .body(body);
     }
 
     private static String replaceHostBaseUrl(String text, String baseUrl) {
@@ -118,7 +134,11 @@ public class IiifController {
         @ApiParam(value = "The PID/PPA of the work.", required = true) @RequestParam
         String id,
         @ApiParam(value = "Path to image.", required = true) @RequestParam
-        String path
+        String path,
+        @ApiIgnore @RequestHeader
+        HttpHeaders requestHeaders,
+        @ApiIgnore
+        WebRequest webRequest
     ) throws IOException {
         if (id.isBlank()) {
             throw new HttpClientErrorException(
@@ -130,9 +150,23 @@ public class IiifController {
             );
         }
 
+        // The image of a PID never changes, so the archive is not needed to answer a conditional request
+        String etag = archiveRepository.findByPid(id) != null
+            ? HttpCacheUtils.immutableEtag("iiif/image", id, path) : null;
+        if (etag != null && webRequest.checkNotModified(etag)) {
+            return null;
+        }
+
+        // Tiffs are converted, so only parts of other images can be requested
+        String lowerPath = path.toLowerCase();
+        boolean tiffPath = lowerPath.endsWith(".tif") || lowerPath.endsWith(".tiff");
+
         Response res;
         try {
-            res = archiveManagerService.exportFile(id, Paths.get("data", path).toString());
+            res = archiveManagerService.exportFile(
+                id, Paths.get("data", path).toString(),
+                tiffPath ? null : HttpCacheUtils.rangeHeaders(requestHeaders, etag)
+            );
         } catch (HttpClientErrorException e) {
             if (HttpStatus.NOT_FOUND == e.getStatusCode()) {
                 String msg = e.getMessage().contains(ErrMsg.ARCHIVE_NOT_FOUND) ? ErrMsg.ID_NOT_FOUND
@@ -143,15 +177,22 @@ public class IiifController {
         }
 
         MediaType mediaType = MediaType.parseMediaType(res.headers().get(HttpHeaders.CONTENT_TYPE));
+        boolean convert = mediaType.includes(MediaType.parseMediaType("image/tiff"));
+        if (convert && res.code() == HttpStatus.PARTIAL_CONTENT.value()) {
+            // A tiff without tiff-extension: a part of it cannot be converted, so get the whole file
+            res.close();
+            res = archiveManagerService.exportFile(id, Paths.get("data", path).toString());
+        }
+        Response finalRes = res;
         // Convert to jpg and return
 
             StreamingResponseBody stream = outputStream -> {
-                try {
-                    InputStream imageInStream = res.body().byteStream();
-                    if (mediaType.includes(MediaType.parseMediaType("image/tiff"))) {
+                try (finalRes) {
+                    InputStream imageInStream = finalRes.body().byteStream();
+                    if (convert) {
                         MetsWebConverter.convertTifToJpg(imageInStream, outputStream);
                     } else {
-                        outputStream.write(imageInStream.readAllBytes());
+                        imageInStream.transferTo(outputStream);
                     }
                     imageInStream.close();
                 } catch (Exception e) {
@@ -161,7 +202,20 @@ public class IiifController {
                     );
                 }
             };
-            return ResponseEntity.ok().contentType(MediaType.parseMediaType("image/jpeg")).body(stream);
+            ResponseEntity.BodyBuilder builder;
+            if (convert) {
+                builder = ResponseEntity.ok().contentType(MediaType.parseMediaType("image/jpeg"));
+            } else {
+                Headers headers = res.headers();
+                builder = ExportController.rangeResponse(
+                        res.code(), headers.get(HttpHeaders.CONTENT_RANGE), headers.get(HttpHeaders.ACCEPT_RANGES)
+                    )
+                    .contentType(mediaType);
+            }
+            if (etag != null) {
+                builder.eTag(etag).header(HttpHeaders.CACHE_CONTROL, HttpCacheUtils.CACHE_CONTROL_IMMUTABLE);
+            }
+            return builder.body(stream);
 
     }
 }
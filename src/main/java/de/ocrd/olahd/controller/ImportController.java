@@ -1,19 +1,14 @@
 package de.ocrd.olahd.controller;
 
-import de.ocrd.olahd.Constants;
-import de.ocrd.olahd.component.ExecutorWrapper;
-import de.ocrd.olahd.controller.importarchive.BagImport;
 import de.ocrd.olahd.controller.importarchive.BagImportParams;
 import de.ocrd.olahd.controller.importarchive.FormParams;
+import de.ocrd.olahd.controller.importarchive.ImportPreparation;
+import de.ocrd.olahd.controller.importarchive.ImportQueue;
 import de.ocrd.olahd.controller.importarchive.ImportUtils;
-import de.ocrd.olahd.domain.Archive;
 import de.ocrd.olahd.domain.ResponseMessage;
 import de.ocrd.olahd.domain.TrackingInfo;
 import de.ocrd.olahd.domain.TrackingStatus;
-import de.ocrd.olahd.repository.mongo.ArchiveRepository;
 import de.ocrd.olahd.repository.mongo.TrackingRepository;
-import de.ocrd.olahd.service.PidService;
-import de.ocrd.olahd.utils.Utils;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiImplicitParam;
 import io.swagger.annotations.ApiImplicitParams;
@@ -22,24 +17,17 @@ import io.swagger.annotations.ApiResponse;
 import io.swagger.annotations.ApiResponses;
 import io.swagger.annotations.Authorization;
 import io.swagger.annotations.ResponseHeader;
-import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.Principal;
-import java.util.AbstractMap;
-import java.util.List;
 import java.util.UUID;
 import javax.servlet.http.HttpServletRequest;
-import net.jodah.failsafe.Failsafe;
 import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
-import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -58,30 +46,27 @@ public class ImportController {
 
     private final TrackingRepository trackingRepository;
 
-    private final ArchiveRepository archiveRepository;
+    private final ImportPreparation importPreparation;
 
-    private final PidService pidService;
-
-    private final ExecutorWrapper executor;
-
-    private AutowireCapableBeanFactory beanFactory;
+    private final ImportQueue importQueue;
 
     @Value("${ola.hd.upload.dir}")
     private String uploadDir;
 
-    @Value("${webnotifier.url}")
-    private String webnotifierUrl;
+    /** Extract the ZIP while it is uploaded instead of afterwards from the saved file */
+    @Value("${import.streamingExtract:true}")
+    private boolean streamingExtract;
+
+    /** Answer right after the upload and validate it in the background */
+    @Value("${import.asyncValidation:false}")
+    private boolean asyncValidation;
 
     public ImportController(
-        TrackingRepository trackingRepository, ArchiveRepository archiveRepository,
-        PidService pidService, ExecutorWrapper executor,
-        AutowireCapableBeanFactory beanFactory
+        TrackingRepository trackingRepository, ImportPreparation importPreparation, ImportQueue importQueue
     ) {
         this.trackingRepository = trackingRepository;
-        this.archiveRepository = archiveRepository;
-        this.pidService = pidService;
-        this.executor = executor;
-        this.beanFactory = beanFactory;
+        this.importPreparation = importPreparation;
+        this.importQueue = importQueue;
     }
 
     @ApiOperation(
@@ -91,14 +76,18 @@ public class ImportController {
     )
     @ApiResponses(value = {
         @ApiResponse(
-            code = 202, message = "The OCRD-ZIP has a valid BagIt structure. The system is saving it to the archive.",
+            code = 202, message = "The OCRD-ZIP has a valid BagIt structure (or is validated in the background, if configured). The system is saving it to the archive.",
             response = ResponseMessage.class,
             responseHeaders = { @ResponseHeader(name = "Location", description = "The PID of the ZIP.", response = String.class) }
         ),
         @ApiResponse(code = 400, message = "The OCRD-ZIP is invalid.", response = ResponseMessage.class),
         @ApiResponse(code = 401, message = "Invalid credentials.", response = ResponseMessage.class),
         @ApiResponse(code = 409, message = "The same archive (checked through payload checksum) with the same ocrd-identifier already exists.", response = ResponseMessage.class),
-        @ApiResponse(code = 415, message = "The request is not a multipart request.", response = ResponseMessage.class)
+        @ApiResponse(code = 415, message = "The request is not a multipart request.", response = ResponseMessage.class),
+        @ApiResponse(
+            code = 429, message = "Too many imports in progress.", response = ResponseMessage.class,
+            responseHeaders = { @ResponseHeader(name = "Retry-After", description = "Seconds to wait before trying again.", response = Integer.class) }
+        )
     })
     @ApiImplicitParams(value = {
             @ApiImplicitParam(dataType = "__file", name = "file", value = "The file to be imported", required = true, paramType = "form"),
@@ -116,66 +105,58 @@ public class ImportController {
                 HttpStatus.UNSUPPORTED_MEDIA_TYPE, trackingRepository
             );
         }
+        // Reject the import before the upload is read if too many imports are in progress
+        importQueue.reserve();
+        ResponseMessage responseMessage = readAndSubmit(request, principal, info);
+
+        // Inform the user that the import is done in the background.
+        return ResponseEntity.accepted().body(responseMessage);
+    }
+
+    /**
+     * Read the upload and submit the import to the queue. The upload is validated before, or in the background with
+     * `import.asyncValidation`. The reserved place is given back here if the upload fails, after that by the queue
+     *
+     * @return the response for the client
+     */
+    private ResponseMessage readAndSubmit(HttpServletRequest request, Principal principal, TrackingInfo info)
+        throws IOException, FileUploadException {
         Path tempDir = Paths.get(uploadDir, UUID.randomUUID().toString());
-        FormParams formParams = ImportUtils.readFormParams(request, info, tempDir, trackingRepository);
-        File targetFile = formParams.getFile();  // The uploaded file (ZIP)
-        Path destination = tempDir.resolve(FilenameUtils.getBaseName(targetFile.getName()) + "_extracted");
-
-        List<AbstractMap.SimpleImmutableEntry<String, String>> bagInfos = ImportUtils.extractAndVerifyOcrdzip(
-                targetFile.toPath(), destination, tempDir, info, formParams, trackingRepository
-        );
-
-        // Set previous version in two cases: 1. If Ocrdzip with same OcrdIdentifier exist
-        // 2. if prev-pid is provided in the bag-info.txt
-        if (StringUtils.isBlank(formParams.getPrev())) {
-            String checksumPayloadmanifest = ImportUtils.generatePayloadmanifestChecksum(destination);
-            String ocrdIdentifier = ImportUtils.readOcrdIdentifier(bagInfos);
-            Archive prevArchive = archiveRepository.findTopByOcrdIdentifierOrderByCreatedAtDesc(ocrdIdentifier);
-            if (prevArchive != null) {
-                if (checksumPayloadmanifest.equals(prevArchive.getChecksumPayloadmanifest())) {
-                    // Abort if archive with same OcrdIdentifier and same payload already exists
-                    ImportUtils.throwClientException(
-                        String.format(
-                            "Newest archive of OcrdIdentifier '%s' has the same payload(-checksum).",
-                            ocrdIdentifier
-                        ), info,
-                        HttpStatus.CONFLICT, trackingRepository
-                    );
-                } else {
-                    formParams.setPrev(prevArchive.getPid());
-                }
+        FormParams formParams;
+        BagImportParams params = null;
+        boolean prepared = false;
+        try {
+            formParams = ImportUtils.readFormParams(request, info, tempDir, trackingRepository, streamingExtract);
+            if (asyncValidation) {
+                info.setMessage("Upload received, validating...");
+                trackingRepository.save(info);
             } else {
-                String prevPid = ImportUtils.readBagInfoValue(bagInfos, Constants.BAGINFO_KEY_PREV_PID);
-                if (!Utils.isNullValue(prevPid)) {
-                    formParams.setPrev(prevPid);
-                }
+                params = importPreparation.prepare(formParams, tempDir, info);
+            }
+            prepared = true;
+        } finally {
+            if (!prepared) {
+                importQueue.release();
             }
         }
 
-        // Create a PID with meta-data from bag-info.txt
-        String pid = Failsafe.with(ImportUtils.RETRY_POLICY).get(() -> pidService.createPid(bagInfos));
-        if (StringUtils.isBlank(pid)) {
-            ImportUtils.throwClientException(
-                "No PID received", info, HttpStatus.INTERNAL_SERVER_ERROR, trackingRepository
+        ResponseMessage responseMessage;
+        if (asyncValidation) {
+            responseMessage = new ResponseMessage(
+                HttpStatus.ACCEPTED, "Your data has been received and is being validated."
             );
-        } else {
-            info.setPid(pid);
-        }
-
-        // **here the OCRD-ZIP is scheduled to be saved** to the external archive
-        executor.submit(
-            BagImport.create(
-                beanFactory,
-                new BagImportParams(destination, pid, formParams, bagInfos, info, tempDir, webnotifierUrl)
-            )
-        );
+            responseMessage.setTrackingId(info.getId());
 
-        // Inform the user that the import is done in the background.
-        trackingRepository.save(info);
-        ResponseMessage responseMessage = new ResponseMessage(HttpStatus.ACCEPTED, "Your data is being processed.");
-        responseMessage.setPid(pid);
+            importQueue.submitUnvalidated(formParams, tempDir, info, principal.getName());
+        } else {
+            responseMessage = new ResponseMessage(HttpStatus.ACCEPTED, "Your data is being processed.");
+            responseMessage.setPid(info.getPid());
+            responseMessage.setTrackingId(info.getId());
 
-        return ResponseEntity.accepted().body(responseMessage);
+            // **here the OCRD-ZIP is scheduled to be saved** to the external archive
+            importQueue.submit(params, principal.getName());
+        }
+        return responseMessage;
     }
 
     @ExceptionHandler(IllegalArgumentException.class)
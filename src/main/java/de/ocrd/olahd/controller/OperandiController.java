@@ -133,6 +133,8 @@ public class OperandiController {
         job = operandiJobRepository.save(job);
 
         executor.submit(
+            ExecutorWrapper.TaskClass.OPERANDI,
+            principal.getName(),
             OperandiJobStarter.create(
                 beanFactory,
                 job
@@ -1,21 +1,26 @@
 package de.ocrd.olahd.controller.importarchive;
 
 import de.ocrd.olahd.component.MutexFactory;
+import de.ocrd.olahd.component.PidWriteBehind;
 import de.ocrd.olahd.controller.ExportController;
 import de.ocrd.olahd.domain.Archive;
 import de.ocrd.olahd.domain.ImportResult;
 import de.ocrd.olahd.domain.TrackingInfo;
 import de.ocrd.olahd.domain.TrackingStatus;
+import de.ocrd.olahd.exceptions.LeaseLostException;
 import de.ocrd.olahd.repository.mongo.ArchiveRepository;
 import de.ocrd.olahd.repository.mongo.TrackingRepository;
 import de.ocrd.olahd.service.ArchiveManagerService;
-import de.ocrd.olahd.service.PidService;
+import de.ocrd.olahd.service.ImportGate;
 import de.ocrd.olahd.utils.Utils;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import net.jodah.failsafe.Failsafe;
 import net.jodah.failsafe.FailsafeException;
 import net.jodah.failsafe.RetryPolicy;
@@ -30,6 +35,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
 import org.springframework.hateoas.server.mvc.WebMvcLinkBuilder;
 import org.springframework.util.FileSystemUtils;
+import org.springframework.web.client.HttpStatusCodeException;
 
 /**
  * Class to import OCRD-ZIP in archiveManager, send metadata exportUrl to pid-Service and store
@@ -44,7 +50,7 @@ public class BagImport implements Runnable {
     @Autowired
     private ArchiveRepository archiveRepository;
     @Autowired
-    private PidService pidService;
+    private PidWriteBehind pidWriteBehind;
     @Autowired
     private MutexFactory<String> mutexFactory;
 
@@ -54,6 +60,12 @@ public class BagImport implements Runnable {
 
     private static final Logger logger = LoggerFactory.getLogger(BagImport.class);
 
+    /**
+     * Stands for the PID in an export-URL built before the PID is created. Consists of characters which are not
+     * encoded in the URL, so it can be replaced with the PID later
+     */
+    static final String PID_PLACEHOLDER = "OLAHDPIDPLACEHOLDER";
+
     private BagImport() {
         super();
     }
@@ -66,44 +78,62 @@ public class BagImport implements Runnable {
      * @return
      */
     public static BagImport create(AutowireCapableBeanFactory factory, BagImportParams params) {
-        BagImport res = new BagImport();
-        factory.autowireBean(res);
-        res.params = params;
+        return create(factory, params, exportUrl(params.pid));
+    }
 
-        // URL where the stored file will be available after completed import
+    /**
+     * URL where the stored file will be available after completed import. Built from the current request
+     *
+     * @param pid
+     * @return
+     */
+    static String exportUrl(String pid) {
         WebMvcLinkBuilder linkBuilder = WebMvcLinkBuilder.linkTo(
-            WebMvcLinkBuilder.methodOn(ExportController.class).export(params.pid, false)
+            WebMvcLinkBuilder.methodOn(ExportController.class).export(pid, false)
         );
-        res.exportUrl = linkBuilder.toString();
+        return linkBuilder.toString();
+    }
+
+    /**
+     * Create the bean with a known export-URL. The URL is built from the current request, so this is needed when
+     * there is no request, e.g. when an import is restarted
+     *
+     * @param factory
+     * @param params
+     * @param exportUrl
+     * @return
+     */
+    public static BagImport create(AutowireCapableBeanFactory factory, BagImportParams params, String exportUrl) {
+        BagImport res = new BagImport();
+        factory.autowireBean(res);
+        res.params = params;
+        res.exportUrl = exportUrl;
         return res;
     }
 
+    public String getExportUrl() {
+        return exportUrl;
+    }
+
     @Override
     public void run() {
         ImportResult importResult = null;
         String prevPid = params.formParams.getPrev();
+        boolean abandoned = false;
 
         try {
             /* TODO: think about no retries. There are cases (pid service or cdstar temporarily not available) when it
              * makes sense just to try again, but I thinks most of the time multiple tries would fail too */
-            if (prevPid != null) {
-                importResult = Failsafe.with(ImportUtils.RETRY_POLICY).get(
-                    () -> archiveManagerService.importZipFile(
-                        params.destination,
-                        params.pid,
-                        params.bagInfos,
-                        prevPid
-                    )
-                );
-            } else {
-                importResult = Failsafe.with(ImportUtils.RETRY_POLICY).get(
-                    () -> archiveManagerService.importZipFile(
-                        params.destination,
-                        params.pid,
-                        params.bagInfos
-                    )
-                );
-            }
+            // The upload starts while the bag is still verified, it is committed only if the verification succeeds
+            importResult = Failsafe.with(ImportUtils.RETRY_POLICY).get(
+                () -> archiveManagerService.importZipFile(
+                    params.destination,
+                    params.pid,
+                    params.bagInfos,
+                    prevPid,
+                    new Gate()
+                )
+            );
 
             List<AbstractMap.SimpleImmutableEntry<String, String>> metaData = importResult
                 .getMetaData();
@@ -118,14 +148,14 @@ public class BagImport implements Runnable {
              */
             metaData.addAll(params.bagInfos);
             metaData.add(new AbstractMap.SimpleImmutableEntry<>("URL", exportUrl));
-            pidService.updatePid(params.pid, metaData);
+            pidWriteBehind.update(params.pid, metaData);
 
             if (prevPid != null) {
                 // Update the old PID to link to the new version
                 List<AbstractMap.SimpleImmutableEntry<String, String>> pidAppendedData = new ArrayList<>();
                 pidAppendedData
                     .add(new AbstractMap.SimpleImmutableEntry<>("NEXT-VERSION", params.pid));
-                pidService.appendData(prevPid, pidAppendedData);
+                pidWriteBehind.append(prevPid, pidAppendedData);
             }
 
             params.info.setStatus(TrackingStatus.SUCCESS);
@@ -146,7 +176,7 @@ public class BagImport implements Runnable {
                  * that yet - synchronized because it could happen that two imports occur at the
                  * same time and both change the same prevVersion-Archive
                  */
-                synchronized (mutexFactory.getMutex(prevPid)) {
+                try (MutexFactory.Lock lock = mutexFactory.lock(prevPid)) {
                     Archive prevVersion = archiveRepository.findByPid(prevPid);
                     archive.setPreviousVersion(prevVersion);
                     if (importResult.isTapeStorageUsed()) {
@@ -161,11 +191,83 @@ public class BagImport implements Runnable {
             }
             sendToElastic(params.formParams.getPrev());
         } catch (Exception ex) {
-            logger.error("Archive Import failed", ex);
-            handleFailedImport(ex, params.pid, importResult, params.info);
+            if (params.lease != null && !params.lease.check()) {
+                // Another worker claimed the import, it must not be cleaned up while that worker runs it
+                logger.error("Archive Import failed after its lease was lost. pid: '{}'", params.pid, ex);
+                abandoned = true;
+            } else {
+                logger.error("Archive Import failed", ex);
+                handleFailedImport(ex, params.pid, importResult, params.info);
+            }
         } finally {
-            // Clean up the temp: Files are saved in CDStar and not needed any more
-            FileSystemUtils.deleteRecursively(params.tempDir.toFile());
+            // The verification might still read the files if the import failed
+            awaitValidation();
+            if (!abandoned) {
+                // Clean up the temp: Files are saved in CDStar and not needed any more
+                FileSystemUtils.deleteRecursively(params.tempDir.toFile());
+            }
+        }
+    }
+
+    /**
+     * Lets the import be committed only after the verification succeeded, and only if this instance still holds the
+     * lease of the import
+     */
+    private class Gate implements ImportGate {
+
+        @Override
+        public void checkNotFailed() throws IOException {
+            if (params.lease != null && params.lease.isLost()) {
+                throw new LeaseLostException("Lease of the import was lost. pid: '" + params.pid + "'");
+            }
+            if (params.validation != null && params.validation.isDone()) {
+                checkValidation();
+            }
+        }
+
+        @Override
+        public void awaitCommit() throws IOException {
+            checkValidation();
+            if (params.lease != null && !params.lease.checkBeforeCommit()) {
+                throw new LeaseLostException(
+                    "Lease of the import was lost, it is not committed. pid: '" + params.pid + "'"
+                );
+            }
+        }
+
+        /**
+         * Wait for the verification and throw its error, e.g. HttpClientErrorException for an invalid bag
+         */
+        private void checkValidation() throws IOException {
+            if (params.validation == null) {
+                return;
+            }
+            try {
+                params.validation.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                } else if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IOException("Validation failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the validation");
+            }
+        }
+    }
+
+    private void awaitValidation() {
+        if (params.validation == null) {
+            return;
+        }
+        try {
+            params.validation.get();
+        } catch (ExecutionException e) {
+            // The import failed with this error already
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -259,9 +361,16 @@ public class BagImport implements Runnable {
     private void handleFailedImport(
         Exception ex, String pid, ImportResult importResult, TrackingInfo info
     ) {
+        // Discard the open transaction and the upload state of the import
+        try {
+            archiveManagerService.abortImport(pid);
+        } catch (Exception e) {
+            logger.error("error cleaning up. pid: '{}' - {}", pid, e, "Aborting import failed");
+        }
+
         // Delete the PID
         try {
-            pidService.deletePid(pid);
+            pidWriteBehind.delete(pid);
         } catch (Exception e) {
             logger.error(
                 "error cleaning up. pid: '{}', online-id: '{}', offline-id: '{}' - {}", pid,
@@ -298,7 +407,12 @@ public class BagImport implements Runnable {
 
         // Save the failure data to the tracking database
         info.setStatus(TrackingStatus.FAILED);
-        info.setMessage(ex.getMessage());
+        if (ex instanceof HttpStatusCodeException) {
+            // e.g. the reason why the bag is invalid, without the status code
+            info.setMessage(((HttpStatusCodeException) ex).getStatusText());
+        } else {
+            info.setMessage(ex.getMessage());
+        }
 
         // Delete the PID in the tracking database
         info.setPid(null);
@@ -5,6 +5,7 @@ import java.nio.file.Path;
 import java.util.AbstractMap;
 import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  * Collection of parameters(information) for a Bag-Import
@@ -32,6 +33,12 @@ public class BagImportParams {
     /** URL to webnotifier for sending requests*/
     String webnotifierUrl;
 
+    /** Verification of the checksums and the METS running during the import, null if the bag is verified already */
+    Future<?> validation;
+
+    /** Lease of the job if the import is run by the ImportQueue, null otherwise */
+    ImportLease lease;
+
     public BagImportParams(Path destination, String pid, FormParams formParams,
         List<SimpleImmutableEntry<String, String>> bagInfos, TrackingInfo info, Path tempDir, String webnotifierUrl
     ) {
@@ -1,6 +1,7 @@
 package de.ocrd.olahd.controller.importarchive;
 
 import java.io.File;
+import java.util.Map;
 
 /**
  * This class contains the form-parameters provided with the POST request of the import
@@ -9,6 +10,8 @@ public class FormParams {
 
     private File file = null;
     private String prev = null;
+    /** sha512 of the extracted files if the zip was extracted while uploading, otherwise null */
+    private Map<String, String> checksums = null;
 
     public File getFile() {
         return file;
@@ -26,4 +29,12 @@ public class FormParams {
         this.prev = prev;
     }
 
+    public Map<String, String> getChecksums() {
+        return checksums;
+    }
+
+    public void setChecksums(Map<String, String> checksums) {
+        this.checksums = checksums;
+    }
+
 }
\ No newline at end of file
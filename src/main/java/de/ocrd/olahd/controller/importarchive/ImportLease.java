@@ -0,0 +1,81 @@
+package de.ocrd.olahd.controller.importarchive;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * Lease of an import job claimed by this instance, see {@linkplain ImportQueue}.
+ *
+ * If the lease could not be renewed in time, another worker may have claimed the job and run the import. Then this
+ * instance must neither commit the import nor clean it up after a failure. The running import is interrupted.
+ */
+class ImportLease {
+
+    /** Renews the lease if this instance still owns the job, false if it does not */
+    private final BooleanSupplier renewal;
+
+    private volatile boolean lost;
+
+    /** Thread running the import, null if it is not running */
+    private Thread runner;
+
+    /** The import is being committed, it must not be interrupted anymore */
+    private boolean committing;
+
+    ImportLease(BooleanSupplier renewal) {
+        this.renewal = renewal;
+    }
+
+    boolean isLost() {
+        return lost;
+    }
+
+    /**
+     * Renew the lease to make sure that this instance still owns the job, e.g. before cleaning up a failed import
+     *
+     * @return false if the lease is lost
+     */
+    boolean check() {
+        if (!lost && !renewal.getAsBoolean()) {
+            lose();
+        }
+        return !lost;
+    }
+
+    /**
+     * Check the lease right before the import is committed. The import is not interrupted afterwards
+     *
+     * @return false if the lease is lost and the import must not be committed
+     */
+    synchronized boolean checkBeforeCommit() {
+        committing = check();
+        return committing;
+    }
+
+    /**
+     * Mark the lease as lost and interrupt the import if it is running and not being committed
+     */
+    synchronized void lose() {
+        lost = true;
+        if (runner != null && runner != Thread.currentThread() && !committing) {
+            runner.interrupt();
+        }
+    }
+
+    /**
+     * Called by the thread starting to run the import
+     *
+     * @return false if the lease is lost already and the import must not be started
+     */
+    synchronized boolean started() {
+        runner = Thread.currentThread();
+        return !lost;
+    }
+
+    /**
+     * Called by the thread which ran the import. Clears an interrupt meant for the import, the thread is reused
+     */
+    synchronized void finished() {
+        runner = null;
+        Thread.interrupted();
+    }
+}
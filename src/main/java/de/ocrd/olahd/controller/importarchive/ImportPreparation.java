@@ -0,0 +1,179 @@
+package de.ocrd.olahd.controller.importarchive;
+
+import de.ocrd.olahd.Constants;
+import de.ocrd.olahd.component.PidPool;
+import de.ocrd.olahd.domain.Archive;
+import de.ocrd.olahd.domain.TrackingInfo;
+import de.ocrd.olahd.repository.mongo.ArchiveRepository;
+import de.ocrd.olahd.repository.mongo.TrackingRepository;
+import de.ocrd.olahd.utils.Utils;
+import gov.loc.repository.bagit.domain.Bag;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
+
+/**
+ * Validation of an uploaded OCRD-ZIP and creation of its PID, the steps between the upload and the import.
+ *
+ * Run in the request by default. With `import.asyncValidation` the request returns after the upload and these steps
+ * are run in the background by the {@linkplain ImportQueue}. Then only the structure of the bag is checked before the
+ * import, the checksums and the METS are verified on one of `import.validation.threads` threads while the import
+ * uploads the files.
+ */
+@Component
+public class ImportPreparation implements DisposableBean {
+
+    private final TrackingRepository trackingRepository;
+
+    private final ArchiveRepository archiveRepository;
+
+    private final PidPool pidPool;
+
+    private final String webnotifierUrl;
+
+    /** Verifies bags during their import */
+    private final ExecutorService verifier;
+
+    public ImportPreparation(
+        TrackingRepository trackingRepository, ArchiveRepository archiveRepository, PidPool pidPool,
+        @Value("${webnotifier.url}") String webnotifierUrl,
+        @Value("${import.validation.threads:2}") int verifierThreads
+    ) {
+        this.trackingRepository = trackingRepository;
+        this.archiveRepository = archiveRepository;
+        this.pidPool = pidPool;
+        this.webnotifierUrl = webnotifierUrl;
+        AtomicInteger counter = new AtomicInteger();
+        this.verifier = Executors.newFixedThreadPool(Math.max(1, verifierThreads), runnable -> {
+            Thread thread = new Thread(runnable, "import-verifier-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Compile the METS schema at startup, not in the first import
+        Validation.prewarmMetsValidation();
+    }
+
+    /**
+     * Extract and validate the uploaded OCRD-ZIP, find its previous version and create the PID. The PID is saved to
+     * the TrackingInfo
+     *
+     * @param formParams - the form parameters of the upload
+     * @param tempDir    - temporary directory of the import containing the uploaded file
+     * @param info       - TrackingInfo of the import
+     * @return parameters to run the import with
+     * @throws HttpClientErrorException if the OCRD-ZIP is invalid or already imported. The TrackingInfo is updated
+     * @throws IOException
+     */
+    public BagImportParams prepare(FormParams formParams, Path tempDir, TrackingInfo info) throws IOException {
+        return prepare(formParams, tempDir, info, false);
+    }
+
+    /**
+     * Like {@linkplain #prepare(FormParams, Path, TrackingInfo)}, optionally without waiting for the verification of
+     * the checksums and the METS
+     *
+     * @param verifyDuringImport - only check the structure of the OCRD-ZIP before the PID is created. The rest is
+     *                           verified in the background, the import waits for it before it is completed
+     */
+    public BagImportParams prepare(FormParams formParams, Path tempDir, TrackingInfo info, boolean verifyDuringImport)
+        throws IOException {
+        File targetFile = formParams.getFile();  // The uploaded file (ZIP)
+        Path destination = ImportUtils.extractionDir(tempDir, targetFile);
+
+        Bag bag = null;
+        List<AbstractMap.SimpleImmutableEntry<String, String>> bagInfos;
+        if (verifyDuringImport) {
+            bag = ImportUtils.extractAndCheckOcrdzip(
+                targetFile.toPath(), destination, tempDir, info, formParams, trackingRepository
+            );
+            bagInfos = bag.getMetadata().getAll();
+        } else {
+            bagInfos = ImportUtils.extractAndVerifyOcrdzip(
+                targetFile.toPath(), destination, tempDir, info, formParams, trackingRepository
+            );
+        }
+
+        // Set previous version in two cases: 1. If Ocrdzip with same OcrdIdentifier exist
+        // 2. if prev-pid is provided in the bag-info.txt
+        if (StringUtils.isBlank(formParams.getPrev())) {
+            String checksumPayloadmanifest = ImportUtils.generatePayloadmanifestChecksum(destination);
+            String ocrdIdentifier = ImportUtils.readOcrdIdentifier(bagInfos);
+            Archive prevArchive = archiveRepository.findTopByOcrdIdentifierOrderByCreatedAtDesc(ocrdIdentifier);
+            if (prevArchive != null) {
+                if (checksumPayloadmanifest.equals(prevArchive.getChecksumPayloadmanifest())) {
+                    // Abort if archive with same OcrdIdentifier and same payload already exists
+                    ImportUtils.throwClientException(
+                        String.format(
+                            "Newest archive of OcrdIdentifier '%s' has the same payload(-checksum).",
+                            ocrdIdentifier
+                        ), info,
+                        HttpStatus.CONFLICT, trackingRepository
+                    );
+                } else {
+                    formParams.setPrev(prevArchive.getPid());
+                }
+            } else {
+                String prevPid = ImportUtils.readBagInfoValue(bagInfos, Constants.BAGINFO_KEY_PREV_PID);
+                if (!Utils.isNullValue(prevPid)) {
+                    formParams.setPrev(prevPid);
+                }
+            }
+        }
+
+        // Get a PID with meta-data from bag-info.txt
+        String pid = pidPool.take(bagInfos);
+        if (StringUtils.isBlank(pid)) {
+            ImportUtils.throwClientException(
+                "No PID received", info, HttpStatus.INTERNAL_SERVER_ERROR, trackingRepository
+            );
+        } else {
+            info.setPid(pid);
+        }
+
+        // Saved before the import starts, the import updates it
+        trackingRepository.save(info);
+
+        BagImportParams params = new BagImportParams(
+            destination, pid, formParams, bagInfos, info, tempDir, webnotifierUrl
+        );
+        if (bag != null) {
+            params.validation = verifyInBackground(bag, destination, formParams);
+        }
+        return params;
+    }
+
+    /**
+     * Verify the checksums and the METS of an extracted bag in the background
+     *
+     * @return the verification. Fails with the exception to report to the user if the bag is invalid
+     */
+    Future<?> verifyInBackground(Bag bag, Path destination, FormParams formParams) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                ImportUtils.verifyOcrdzip(bag, destination, formParams);
+            } catch (RuntimeException e) {
+                throw ImportUtils.invalidOcrdzip(e);
+            }
+        }, verifier);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        verifier.shutdown();
+        verifier.awaitTermination(1, TimeUnit.MINUTES);
+    }
+}
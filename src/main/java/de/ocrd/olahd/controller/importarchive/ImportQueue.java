@@ -0,0 +1,578 @@
+package de.ocrd.olahd.controller.importarchive;
+
+import com.mongodb.client.result.UpdateResult;
+import de.ocrd.olahd.component.ExecutorWrapper;
+import de.ocrd.olahd.component.ExecutorWrapper.TaskClass;
+import de.ocrd.olahd.component.PidWriteBehind;
+import de.ocrd.olahd.domain.ImportJob;
+import de.ocrd.olahd.domain.ImportJobStatus;
+import de.ocrd.olahd.domain.TrackingInfo;
+import de.ocrd.olahd.domain.TrackingStatus;
+import de.ocrd.olahd.repository.mongo.ArchiveRepository;
+import de.ocrd.olahd.repository.mongo.ImportJobRepository;
+import de.ocrd.olahd.repository.mongo.TrackingRepository;
+import de.ocrd.olahd.service.ArchiveManagerService;
+import gov.loc.repository.bagit.domain.Bag;
+import gov.loc.repository.bagit.reader.BagReader;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+
+/**
+ * Bounded queue for the imports running in the background.
+ *
+ * At most `import.queue.maxDepth` imports are accepted at the same time, counting uploads in progress and the imports
+ * stored in the queue. Further import requests are answered with 429 and a Retry-After header before anything is
+ * uploaded, so a burst of uploads cannot fill the upload directory.
+ *
+ * Every accepted import is stored as {@linkplain ImportJob} until it is finished. Workers claim the jobs from MongoDB
+ * with a lease which is renewed while the import is running. When a worker stops, its leases expire and another worker
+ * (or the same after a restart) claims the job again. Imports interrupted while uploading to CDSTAR resume from their
+ * checkpoint. A worker which could not renew a lease stops the import, and it neither commits nor cleans up an import
+ * without holding its lease.
+ *
+ * With `import.role` an instance can be restricted to accepting imports (`api`) or to running them (`worker`), so that
+ * the import throughput can be scaled with the number of workers. The upload directory must be shared by all instances
+ * in this case. The default (`all`) does both and starts an accepted import right away if it has a free place.
+ *
+ * With `import.asyncValidation` the job is stored right after the upload, the upload is validated and the PID is
+ * created by the worker before the import. The checksums and the METS are verified while the files are uploaded to
+ * CDSTAR, the import is committed only after they passed.
+ *
+ * The imports of a user are run as interactive imports as long as the user has at most `import.queue.bulkThreshold`
+ * imports in the queue, further imports of the user are run as bulk imports with a lower priority.
+ */
+@Component
+public class ImportQueue implements MeterBinder {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImportQueue.class);
+
+    private final ImportJobRepository importJobRepository;
+
+    private final TrackingRepository trackingRepository;
+
+    private final ArchiveRepository archiveRepository;
+
+    private final ArchiveManagerService archiveManagerService;
+
+    private final PidWriteBehind pidWriteBehind;
+
+    private final ExecutorWrapper executor;
+
+    private final AutowireCapableBeanFactory beanFactory;
+
+    private final ImportPreparation importPreparation;
+
+    private final MongoTemplate mongoTemplate;
+
+    private final int maxDepth;
+
+    private final long retryAfterSeconds;
+
+    private final int bulkThreshold;
+
+    private final String webnotifierUrl;
+
+    /** This instance accepts imports */
+    private final boolean accepting;
+
+    /** This instance runs imports */
+    private final boolean working;
+
+    /** Max. number of imports claimed by this instance at the same time */
+    private final int maxJobs;
+
+    private final long leaseSeconds;
+
+    /** ID of this instance as owner of claimed jobs */
+    private final String workerId;
+
+    /** Imports reserved with an upload in progress */
+    private final AtomicInteger uploading = new AtomicInteger();
+
+    private final AtomicInteger running = new AtomicInteger();
+
+    /** Leases of the jobs claimed by this instance by trackingId */
+    private final Map<String, ImportLease> claimed = new ConcurrentHashMap<>();
+
+    private Timer waitTimer = Metrics.timer("olahd.import.queue.wait");
+
+    private Timer runTimer = Metrics.timer("olahd.import.run");
+
+    public ImportQueue(
+        ImportJobRepository importJobRepository, TrackingRepository trackingRepository,
+        ArchiveRepository archiveRepository, ArchiveManagerService archiveManagerService,
+        PidWriteBehind pidWriteBehind, ExecutorWrapper executor, AutowireCapableBeanFactory beanFactory,
+        ImportPreparation importPreparation, MongoTemplate mongoTemplate,
+        @Value("${import.queue.maxDepth:20}") int maxDepth,
+        @Value("${import.queue.retryAfterSeconds:60}") long retryAfterSeconds,
+        @Value("${import.queue.bulkThreshold:2}") int bulkThreshold,
+        @Value("${import.role:all}") String role,
+        @Value("${import.worker.maxJobs:4}") int maxJobs,
+        @Value("${import.worker.leaseSeconds:120}") long leaseSeconds,
+        @Value("${webnotifier.url}") String webnotifierUrl
+    ) {
+        if (!List.of("all", "api", "worker").contains(role)) {
+            throw new IllegalArgumentException("Invalid value for import.role: '" + role + "'");
+        }
+        this.importJobRepository = importJobRepository;
+        this.trackingRepository = trackingRepository;
+        this.archiveRepository = archiveRepository;
+        this.archiveManagerService = archiveManagerService;
+        this.pidWriteBehind = pidWriteBehind;
+        this.executor = executor;
+        this.beanFactory = beanFactory;
+        this.importPreparation = importPreparation;
+        this.mongoTemplate = mongoTemplate;
+        this.maxDepth = maxDepth;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.bulkThreshold = bulkThreshold;
+        this.webnotifierUrl = webnotifierUrl;
+        this.accepting = !"worker".equals(role);
+        this.working = !"api".equals(role);
+        this.maxJobs = Math.max(1, maxJobs);
+        this.leaseSeconds = leaseSeconds;
+        this.workerId = ManagementFactory.getRuntimeMXBean().getName() + "-" + UUID.randomUUID();
+    }
+
+    /**
+     * Reserve a place in the queue for an import. Must be called before the upload is read. The place is used with
+     * {@linkplain #submit(BagImportParams, String)}, which gives it back in any case, or has to be given back with
+     * {@linkplain #release()} if the import is not submitted
+     *
+     * @throws HttpClientErrorException with 429 and Retry-After if the queue is full
+     * @throws HttpServerErrorException with 503 if this instance is a worker only
+     */
+    public void reserve() {
+        if (!accepting) {
+            throw new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE, "This instance does not accept imports");
+        }
+        long jobs = importJobRepository.count();
+        while (true) {
+            int current = uploading.get();
+            if (current + jobs >= maxDepth) {
+                HttpHeaders headers = new HttpHeaders();
+                headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds));
+                throw HttpClientErrorException.create(
+                    HttpStatus.TOO_MANY_REQUESTS, "Too many imports in progress. Please try again later.", headers,
+                    null, null
+                );
+            }
+            if (uploading.compareAndSet(current, current + 1)) {
+                return;
+            }
+        }
+    }
+
+    /** Give back a reserved place, e.g. when the upload was invalid */
+    public void release() {
+        uploading.decrementAndGet();
+    }
+
+    /**
+     * Store the import to be run in the background. Uses the place reserved before and gives it back, also if this fails
+     *
+     * @param params   - parameters of the import. The TrackingInfo must be saved already
+     * @param username - who started the import
+     */
+    public void submit(BagImportParams params, String username) {
+        BagImport bagImport = BagImport.create(beanFactory, params);
+        ImportJob job = new ImportJob(
+            params.pid, params.info.getId(), username, params.destination.toString(), params.tempDir.toString(),
+            params.formParams.getPrev(), bagImport.getExportUrl(),
+            importJobRepository.countByUsername(username) >= bulkThreshold
+        );
+        try {
+            importJobRepository.save(job);
+        } finally {
+            uploading.decrementAndGet();
+        }
+        startNow(job, lease -> {
+            params.lease = lease;
+            return bagImport;
+        });
+    }
+
+    /**
+     * Store an import whose upload is not validated yet. The upload is validated and the PID is created in the
+     * background before the import. Uses the place reserved before and gives it back, also if this fails
+     *
+     * @param formParams - form parameters of the upload
+     * @param tempDir    - temporary directory of the import containing the upload
+     * @param info       - TrackingInfo of the import, must be saved already
+     * @param username   - who started the import
+     */
+    public void submitUnvalidated(FormParams formParams, Path tempDir, TrackingInfo info, String username) {
+        ImportJob job = new ImportJob(
+            info.getId(), username, formParams.getFile().toString(), tempDir.toString(), formParams.getPrev(),
+            BagImport.exportUrl(BagImport.PID_PLACEHOLDER),
+            importJobRepository.countByUsername(username) >= bulkThreshold
+        );
+        try {
+            importJobRepository.save(job);
+        } finally {
+            uploading.decrementAndGet();
+        }
+        startNow(job, lease -> () -> validateAndImport(job, formParams, info, lease));
+    }
+
+    /**
+     * Start a stored job right away instead of waiting for the next poll, if this instance has a free place
+     */
+    private void startNow(ImportJob job, Function<ImportLease, Runnable> task) {
+        if (working && claimed.size() < maxJobs) {
+            ImportJob claimedJob = claim(Criteria.where("_id").is(job.getTrackingId()));
+            if (claimedJob != null) {
+                start(claimedJob, task);
+            }
+        }
+    }
+
+    /**
+     * Claim jobs which are not claimed yet or whose lease has expired, while this instance has free places
+     */
+    @Scheduled(fixedDelayString = "${import.worker.pollMillis:5000}")
+    public void poll() {
+        if (!working) {
+            return;
+        }
+        while (claimed.size() < maxJobs) {
+            ImportJob job = claim(Criteria.where("bulk").is(false));
+            if (job == null) {
+                job = claim(Criteria.where("bulk").is(true));
+            }
+            if (job == null) {
+                return;
+            }
+            try {
+                restart(job);
+            } catch (RuntimeException e) {
+                logger.error("Error starting claimed import. trackingId: '{}'", job.getTrackingId(), e);
+            }
+        }
+    }
+
+    /**
+     * Renew the leases of the jobs claimed by this instance
+     */
+    @Scheduled(fixedDelayString = "${import.worker.heartbeatMillis:30000}")
+    public void heartbeat() {
+        if (claimed.isEmpty()) {
+            return;
+        }
+        UpdateResult result = mongoTemplate.updateMulti(
+            new Query(Criteria.where("_id").in(claimed.keySet()).and("owner").is(workerId)),
+            new Update().set("leaseUntil", Instant.now().plusSeconds(leaseSeconds)),
+            ImportJob.class
+        );
+        if (result.getMatchedCount() < claimed.size()) {
+            Query owned = new Query(Criteria.where("_id").in(claimed.keySet()).and("owner").is(workerId));
+            owned.fields().include("_id");
+            Set<String> ownedIds = mongoTemplate.find(owned, ImportJob.class).stream()
+                .map(ImportJob::getTrackingId)
+                .collect(Collectors.toSet());
+            claimed.forEach((trackingId, lease) -> {
+                if (!ownedIds.contains(trackingId)) {
+                    logger.warn("Lease of import lost, stopping it. trackingId: '{}'", trackingId);
+                    lease.lose();
+                }
+            });
+        }
+    }
+
+    /**
+     * Renew the lease of a job if this instance still owns it
+     *
+     * @return false if the job is owned by another worker or deleted
+     */
+    private boolean renewLease(String trackingId) {
+        return mongoTemplate.updateFirst(
+            new Query(Criteria.where("_id").is(trackingId).and("owner").is(workerId)),
+            new Update().set("leaseUntil", Instant.now().plusSeconds(leaseSeconds)),
+            ImportJob.class
+        ).getMatchedCount() > 0;
+    }
+
+    /**
+     * Delete a job if this instance still owns it. A job claimed by another worker is left to that worker
+     */
+    private void deleteJob(ImportJob job) {
+        mongoTemplate.remove(
+            new Query(Criteria.where("_id").is(job.getTrackingId()).and("owner").is(workerId)), ImportJob.class
+        );
+    }
+
+    /**
+     * Claim the oldest job matching the criteria which has no owner or whose lease has expired
+     *
+     * @return the claimed job or null if there is none
+     */
+    private ImportJob claim(Criteria criteria) {
+        Instant now = Instant.now();
+        Query query = new Query(new Criteria().andOperator(
+            criteria,
+            new Criteria().orOperator(Criteria.where("owner").is(null), Criteria.where("leaseUntil").lt(now))
+        )).with(Sort.by("createdAt"));
+        Update update = new Update().set("owner", workerId).set("leaseUntil", now.plusSeconds(leaseSeconds));
+        return mongoTemplate.findAndModify(
+            query, update, FindAndModifyOptions.options().returnNew(true), ImportJob.class
+        );
+    }
+
+    /**
+     * Run a claimed job in the background
+     *
+     * @param task - creates the import for the lease of the job
+     */
+    private void start(ImportJob job, Function<ImportLease, Runnable> task) {
+        ImportLease lease = new ImportLease(() -> renewLease(job.getTrackingId()));
+        claimed.put(job.getTrackingId(), lease);
+        Runnable importTask;
+        try {
+            importTask = task.apply(lease);
+        } catch (RuntimeException e) {
+            claimed.remove(job.getTrackingId());
+            throw e;
+        }
+        TaskClass taskClass = job.isBulk() ? TaskClass.BULK_IMPORT : TaskClass.INTERACTIVE_IMPORT;
+        executor.submit(taskClass, job.getUsername(), () -> run(job, lease, importTask));
+    }
+
+    private void run(ImportJob job, ImportLease lease, Runnable task) {
+        if (!lease.started()) {
+            // Lost while waiting for a thread, the job is run by another worker
+            lease.finished();
+            claimed.remove(job.getTrackingId());
+            return;
+        }
+        running.incrementAndGet();
+        waitTimer.record(Duration.between(job.getCreatedAt(), Instant.now()));
+        long start = System.nanoTime();
+        try {
+            mongoTemplate.updateFirst(
+                new Query(Criteria.where("_id").is(job.getTrackingId()).and("owner").is(workerId)),
+                new Update().set("status", ImportJobStatus.RUNNING).set("startedAt", Instant.now()),
+                ImportJob.class
+            );
+
+            task.run();
+        } catch (RuntimeException e) {
+            logger.error("Error running import. trackingId: '{}'", job.getTrackingId(), e);
+        } finally {
+            runTimer.record(Duration.ofNanos(System.nanoTime() - start));
+            running.decrementAndGet();
+            lease.finished();
+            claimed.remove(job.getTrackingId());
+            try {
+                deleteJob(job);
+            } catch (RuntimeException e) {
+                logger.error("Error deleting import job. trackingId: '{}'", job.getTrackingId(), e);
+            }
+        }
+    }
+
+    /**
+     * Validate the upload, create the PID and run the import
+     */
+    private void validateAndImport(ImportJob job, FormParams formParams, TrackingInfo info, ImportLease lease) {
+        Path tempDir = Paths.get(job.getTempDir());
+        BagImportParams params;
+        try {
+            params = importPreparation.prepare(formParams, tempDir, info, true);
+        } catch (Exception e) {
+            if (!lease.check()) {
+                logger.error(
+                    "Validating import failed after its lease was lost. trackingId: '{}'", job.getTrackingId(), e
+                );
+                return;
+            }
+            // Invalid uploads are marked as failed already
+            if (info.getStatus() != TrackingStatus.FAILED) {
+                logger.error("Error validating import. trackingId: '{}'", job.getTrackingId(), e);
+                info.setStatus(TrackingStatus.FAILED);
+                info.setMessage("Error validating the upload: " + e.getMessage());
+                trackingRepository.save(info);
+            }
+            FileSystemUtils.deleteRecursively(tempDir.toFile());
+            return;
+        }
+
+        String exportUrl = job.getExportUrl().replace(BagImport.PID_PLACEHOLDER, params.pid);
+        UpdateResult result = mongoTemplate.updateFirst(
+            new Query(Criteria.where("_id").is(job.getTrackingId()).and("owner").is(workerId)),
+            new Update()
+                .set("pid", params.pid)
+                .set("validated", true)
+                .set("destination", params.destination.toString())
+                .set("prevPid", params.formParams.getPrev())
+                .set("exportUrl", exportUrl),
+            ImportJob.class
+        );
+        if (result.getMatchedCount() == 0) {
+            // The worker which claimed the job validates it again and creates its own PID
+            logger.error("Lease of import lost after validating it. trackingId: '{}'", job.getTrackingId());
+            lease.lose();
+            try {
+                // Also drops the data queued when the PID was taken from the pool
+                pidWriteBehind.delete(params.pid);
+            } catch (Exception e) {
+                logger.error("error cleaning up. pid: '{}'", params.pid, e);
+            }
+            return;
+        }
+        params.lease = lease;
+        BagImport.create(beanFactory, params, exportUrl).run();
+    }
+
+    /**
+     * Start a claimed import which was accepted by another instance or interrupted by a restart. The parameters of the
+     * import are read from the extracted bag, or from the upload if it is not validated yet
+     */
+    private void restart(ImportJob job) {
+        TrackingInfo info = trackingRepository.findById(job.getTrackingId()).orElse(null);
+        if (isCompleted(job, info)) {
+            // Only the deletion of the job failed or was interrupted, the archive and its PID must be kept
+            logger.info("Import was completed already, removing its job. pid: '{}'", job.getPid());
+            FileSystemUtils.deleteRecursively(Paths.get(job.getTempDir()).toFile());
+            deleteJob(job);
+            return;
+        }
+        if (!job.isValidated()) {
+            if (info == null || !Files.isRegularFile(Paths.get(job.getZipFile()))) {
+                discard(job, info);
+                return;
+            }
+            FormParams formParams = new FormParams();
+            formParams.setFile(new File(job.getZipFile()));
+            formParams.setPrev(job.getPrevPid());
+            start(job, lease -> () -> validateAndImport(job, formParams, info, lease));
+            return;
+        }
+
+        Path destination = Paths.get(job.getDestination());
+        Bag bag = null;
+        if (info != null && Files.isDirectory(destination)) {
+            try {
+                bag = new BagReader().read(destination);
+            } catch (Exception e) {
+                logger.error("Cannot read bag of import. pid: '{}'", job.getPid(), e);
+            }
+        }
+        if (bag == null) {
+            discard(job, info);
+            return;
+        }
+
+        if (job.getStatus() == ImportJobStatus.RUNNING) {
+            logger.info("Restarting interrupted import. pid: '{}'", job.getPid());
+        }
+        FormParams formParams = new FormParams();
+        formParams.setPrev(job.getPrevPid());
+        BagImportParams params = new BagImportParams(
+            destination, job.getPid(), formParams, bag.getMetadata().getAll(), info, Paths.get(job.getTempDir()),
+            webnotifierUrl
+        );
+        // It is unknown whether the verification of the interrupted import was finished, so it is done again
+        params.validation = importPreparation.verifyInBackground(bag, destination, formParams);
+        start(job, lease -> {
+            params.lease = lease;
+            return BagImport.create(beanFactory, params, job.getExportUrl());
+        });
+    }
+
+    /**
+     * Check if the import of the job was committed. Then its job is left over only and must not be run or cleaned up
+     */
+    private boolean isCompleted(ImportJob job, TrackingInfo info) {
+        if (info != null && info.getStatus() == TrackingStatus.SUCCESS) {
+            return true;
+        }
+        return job.getPid() != null && archiveRepository.findByPid(job.getPid()) != null;
+    }
+
+    /**
+     * Clean up an import which cannot be started because its data is gone. Must not be called for completed imports
+     */
+    private void discard(ImportJob job, TrackingInfo info) {
+        logger.error(
+            "Import cannot be started, data is not available. trackingId: '{}', pid: '{}'",
+            job.getTrackingId(), job.getPid()
+        );
+        if (job.getPid() != null) {
+            try {
+                archiveManagerService.abortImport(job.getPid());
+                pidWriteBehind.delete(job.getPid());
+            } catch (Exception e) {
+                logger.error("error cleaning up. pid: '{}'", job.getPid(), e);
+            }
+        }
+        if (info != null) {
+            info.setStatus(TrackingStatus.FAILED);
+            info.setMessage("The data of the import is not available anymore. Please upload the data again.");
+            info.setPid(null);
+            trackingRepository.save(info);
+        }
+        FileSystemUtils.deleteRecursively(Paths.get(job.getTempDir()).toFile());
+        deleteJob(job);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("olahd.import.jobs", uploading, AtomicInteger::get)
+            .tag("state", "uploading")
+            .description("Imports being uploaded to this instance")
+            .register(registry);
+        Gauge.builder("olahd.import.jobs", importJobRepository, ImportJobRepository::countByOwnerIsNull)
+            .tag("state", "queued")
+            .description("Imports waiting to be claimed by a worker")
+            .register(registry);
+        Gauge.builder("olahd.import.jobs", claimed, Map::size)
+            .tag("state", "claimed")
+            .description("Imports claimed by this instance, running or waiting for a thread")
+            .register(registry);
+        Gauge.builder("olahd.import.jobs", running, AtomicInteger::get)
+            .tag("state", "running")
+            .description("Imports running on this instance")
+            .register(registry);
+        waitTimer = Timer.builder("olahd.import.queue.wait")
+            .description("Time from accepting an import till it is started")
+            .register(registry);
+        runTimer = Timer.builder("olahd.import.run")
+            .description("Time to import a bag in the background")
+            .register(registry);
+    }
+}
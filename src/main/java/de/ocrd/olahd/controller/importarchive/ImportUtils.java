@@ -5,6 +5,7 @@ import de.ocrd.olahd.Constants;
 import de.ocrd.olahd.domain.TrackingInfo;
 import de.ocrd.olahd.domain.TrackingStatus;
 import de.ocrd.olahd.exceptions.BagitChecksumException;
+import de.ocrd.olahd.exceptions.LeaseLostException;
 import de.ocrd.olahd.exceptions.MetsInvalidException;
 import de.ocrd.olahd.exceptions.MetsSchemaException;
 import de.ocrd.olahd.exceptions.OcrdzipInvalidException;
@@ -25,18 +26,21 @@ import java.time.Duration;
 import java.util.AbstractMap;
 import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import javax.servlet.http.HttpServletRequest;
 import net.jodah.failsafe.RetryPolicy;
-import net.lingala.zip4j.ZipFile;
 import org.apache.commons.fileupload.FileItemIterator;
 import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.apache.commons.fileupload.util.Streams;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.io.output.NullOutputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.tika.Tika;
 import org.slf4j.Logger;
@@ -45,11 +49,15 @@ import org.springframework.http.HttpStatus;
 import org.springframework.util.FileSystemUtils;
 import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.HttpStatusCodeException;
 
 public class ImportUtils {
 
     /** Retry policies when a call to another service is failed */
-    public static RetryPolicy<Object> RETRY_POLICY = new RetryPolicy<>().withDelay(Duration.ofSeconds(10)).withMaxRetries(3);
+    public static RetryPolicy<Object> RETRY_POLICY = new RetryPolicy<>().withDelay(Duration.ofSeconds(10)).withMaxRetries(3)
+        // Errors caused by the request, e.g. an invalid upload, would fail again. An import whose lease is lost is left
+        // to the worker which claimed it
+        .abortOn(HttpClientErrorException.class, LeaseLostException.class);
 
     private ImportUtils() {};
 
@@ -147,16 +155,44 @@ public class ImportUtils {
         Path targetFile, Path destination, Path tempDir, TrackingInfo info, FormParams params,
         TrackingRepository trackingRepository
     ) throws IOException {
-        Bag bag;
+        Bag bag = extractAndCheckOcrdzip(targetFile, destination, tempDir, info, params, trackingRepository);
+        try {
+            verifyOcrdzip(bag, destination, params);
+        } catch (Exception ex) {
+            throw rejectOcrdzip(ex, tempDir, info, trackingRepository);
+        }
+        return bag.getMetadata().getAll();
+    }
+
+    /**
+     * Extract bagit and check its structure and metadata. The files are not read, so this is fast also for large bags.
+     * The rest is done by {@linkplain #verifyOcrdzip(Bag, Path, FormParams)}.
+     *
+     * @param targetFile Location of the ZIP-File
+     * @param destination Where to extract the file
+     * @param tempDir Temporary directory to store the ZIP-file in. Deleted if the bag is not valid
+     * @param info Needed to set error tracking info in case bag is not valid
+     * @return the extracted bag
+     * @throws IOException
+     */
+    public static Bag extractAndCheckOcrdzip(
+        Path targetFile, Path destination, Path tempDir, TrackingInfo info, FormParams params,
+        TrackingRepository trackingRepository
+    ) throws IOException {
         // Default executor service used crashes with about more than 20.00 files.
         ExecutorService exeService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-        try (BagVerifier verifier = new BagVerifier(exeService); ZipFile zipFile = new ZipFile(targetFile.toFile())) {
-            // Extract the zip file
-            zipFile.extractAll(destination.toString());
+        try (BagVerifier verifier = new BagVerifier(exeService)) {
+            // Reject invalid zips before anything is extracted or hashed
+            Validation.precheckOcrdzip(targetFile);
+
+            // Extract the zip file, if that was not done during the upload already
+            if (params.getChecksums() == null) {
+                ParallelZipExtractor.extract(targetFile, destination);
+            }
             BagReader reader = new BagReader();
 
             // Create a bag from an existing directory
-            bag = reader.read(destination);
+            Bag bag = reader.read(destination);
 
             if (BagVerifier.canQuickVerify(bag)) {
                 BagVerifier.quicklyVerify(bag);
@@ -165,42 +201,90 @@ public class ImportUtils {
                 MandatoryVerifier.checkIfAtLeastOnePayloadManifestsExist(bag.getRootDir(), bag.getVersion());
             }
 
-            // Validate payload and tag manifest
-            new BagitManifestValidation(destination).validate(true);
-
             Validation.validateOcrdzip(bag, destination, params);
-            Validation.validateMetsfileSchema(bag);
+            return bag;
         } catch (Exception ex) {
-            // Clean up the temp
-            FileSystemUtils.deleteRecursively(tempDir.toFile());
+            throw rejectOcrdzip(ex, tempDir, info, trackingRepository);
+        }
+    }
 
-            String message;
-            if (ex instanceof BagitChecksumException) {
-                message = "Not a valid Bagit: " + StringUtils.join(((BagitChecksumException)ex).getErrors(), ", ");
-            } else if (ex instanceof OcrdzipInvalidException) {
-                message = "Not a valid Ocrd-Zip: " + StringUtils.join(((OcrdzipInvalidException)ex).getErrors(), ", ");
-            } else if (ex instanceof MetsInvalidException) {
-                message = "Invalid METS: " + ((MetsInvalidException)ex).getMetsErrorMessage();
-            } else if (ex instanceof CorruptChecksumException && ex.getMessage() != null) {
-                // Try to give more detailed error description
-                message = "Invalid file input. The uploaded file must be a ZIP file with BagIt structure.";
-                message += " Details: " + ex.getMessage() + " There may be further bagit-validation-errors";
-            } else if (ex instanceof MetsSchemaException) {
-                throw new HttpServerErrorException(
-                    HttpStatus.INTERNAL_SERVER_ERROR, "Cannot validate METS because schema cannot currently be created"
-                );
-            } else {
-                message = "Unexpected error validating Ocrdzip";
-            }
+    /**
+     * Verify the checksums of the manifests and validate the METS against its schema. These steps read the whole bag.
+     *
+     * @param bag the extracted bag, see {@linkplain #extractAndCheckOcrdzip}
+     * @param destination Where the bag is extracted to
+     * @param params Form parameters of the import, contain the checksums if calculated while uploading
+     * @throws RuntimeException if the bag is invalid, see {@linkplain #invalidOcrdzip(Exception)}
+     */
+    public static void verifyOcrdzip(Bag bag, Path destination, FormParams params) {
+        // Validate payload and tag manifest
+        if (params.getChecksums() == null) {
+            new BagitManifestValidation(destination).validate(true);
+        } else {
+            new BagitManifestValidation(destination, params.getChecksums()).validate(true);
+        }
+
+        Validation.validateMetsfileSchema(bag);
+    }
+
+    /**
+     * Clean up after an invalid OCRD-ZIP and save the reason to the tracking database
+     *
+     * @return the exception to throw, see {@linkplain #invalidOcrdzip(Exception)}
+     */
+    private static HttpStatusCodeException rejectOcrdzip(
+        Exception ex, Path tempDir, TrackingInfo info, TrackingRepository trackingRepository
+    ) {
+        // Clean up the temp
+        FileSystemUtils.deleteRecursively(tempDir.toFile());
+
+        HttpStatusCodeException res = invalidOcrdzip(ex);
+        if (res instanceof HttpClientErrorException) {
             // Save to the tracking database
             info.setStatus(TrackingStatus.FAILED);
-            info.setMessage(message);
+            info.setMessage(res.getStatusText());
             trackingRepository.save(info);
+        }
+        return res;
+    }
 
-            // Throw a friendly message to the client
-            throw new HttpClientErrorException(HttpStatus.BAD_REQUEST, message);
+    /**
+     * Exception with a friendly message for the client for an error validating an OCRD-ZIP
+     *
+     * @param ex error of the validation
+     * @return HttpClientErrorException if the OCRD-ZIP is invalid, HttpServerErrorException if it cannot be validated
+     */
+    static HttpStatusCodeException invalidOcrdzip(Exception ex) {
+        String message;
+        if (ex instanceof BagitChecksumException) {
+            message = "Not a valid Bagit: " + StringUtils.join(((BagitChecksumException)ex).getErrors(), ", ");
+        } else if (ex instanceof OcrdzipInvalidException) {
+            message = "Not a valid Ocrd-Zip: " + StringUtils.join(((OcrdzipInvalidException)ex).getErrors(), ", ");
+        } else if (ex instanceof MetsInvalidException) {
+            message = "Invalid METS: " + ((MetsInvalidException)ex).getMetsErrorMessage();
+        } else if (ex instanceof CorruptChecksumException && ex.getMessage() != null) {
+            // Try to give more detailed error description
+            message = "Invalid file input. The uploaded file must be a ZIP file with BagIt structure.";
+            message += " Details: " + ex.getMessage() + " There may be further bagit-validation-errors";
+        } else if (ex instanceof MetsSchemaException) {
+            return new HttpServerErrorException(
+                HttpStatus.INTERNAL_SERVER_ERROR, "Cannot validate METS because schema cannot currently be created"
+            );
+        } else {
+            message = "Unexpected error validating Ocrdzip";
         }
-        return bag.getMetadata().getAll();
+        // Throw a friendly message to the client
+        return new HttpClientErrorException(HttpStatus.BAD_REQUEST, message);
+    }
+
+    /**
+     * Directory the uploaded OCRD-ZIP is extracted to
+     *
+     * @param tempDir temporary directory of the import
+     * @param zipFile the uploaded file
+     */
+    public static Path extractionDir(Path tempDir, File zipFile) {
+        return tempDir.resolve(FilenameUtils.getBaseName(zipFile.getName()) + "_extracted");
     }
 
     /**
@@ -215,6 +299,7 @@ public class ImportUtils {
      * @param request   request is needed to get the parameters
      * @param principal user who initiated request. User name is needed for potential error messages
      * @param uploadDir   Temporary directory to store the ZIP-file in
+     * @param streamingExtract extract the ZIP while it is uploaded, see {@linkplain #extractionDir(Path, File)}
      * @return
      * @throws IOException              forwarded from apache-commons
      * @throws FileUploadException      forwarded from apache-commons
@@ -222,7 +307,8 @@ public class ImportUtils {
      *                                  occurred while writing to temporary-directory
      */
     public static FormParams readFormParams(
-        HttpServletRequest request, TrackingInfo info, Path tempDir, TrackingRepository trackingRepository
+        HttpServletRequest request, TrackingInfo info, Path tempDir, TrackingRepository trackingRepository,
+        boolean streamingExtract
     ) throws FileUploadException, IOException {
         Utils.logDebug("Trying to read form params. Request: " + Utils.readRequestInfos(request));
         FormParams res = new FormParams();
@@ -250,7 +336,12 @@ public class ImportUtils {
                 try (InputStream uploadedStream = item.openStream();
                     OutputStream out = FileUtils.openOutputStream(targetFile)
                 ) {
-                    IOUtils.copy(uploadedStream, out);
+                    if (streamingExtract) {
+                        Path destination = extractionDir(tempDir, targetFile);
+                        res.setChecksums(extractWhileUploading(uploadedStream, out, destination));
+                    } else {
+                        IOUtils.copy(uploadedStream, out);
+                    }
                 } catch (IOException e) {
                     logger.error(e.getMessage(), e);
                     throw new HttpServerErrorException(HttpStatus.INTERNAL_SERVER_ERROR,
@@ -286,6 +377,31 @@ public class ImportUtils {
     }
 
 
+    /**
+     * Extract the ZIP from the upload stream and save it to the file at the same time.
+     *
+     * The file is still written so that the ZIP can be extracted from it the usual way if it cannot be read as a
+     * stream. The extracted files are removed in this case.
+     *
+     * @return sha512-checksums of the extracted files, null if the ZIP could not be extracted from the stream
+     * @throws IOException if reading the upload or writing the file fails
+     */
+    private static Map<String, String> extractWhileUploading(InputStream uploadedStream, OutputStream out,
+        Path destination
+    ) throws IOException {
+        TeeInputStream tee = new TeeInputStream(uploadedStream, out);
+        Map<String, String> checksums = null;
+        try {
+            checksums = StreamingZipExtractor.extract(tee, destination);
+        } catch (IOException e) {
+            logger.info("Cannot extract zip while uploading, extracting it afterwards: {}", e.getMessage());
+            FileSystemUtils.deleteRecursively(destination.toFile());
+        }
+        // The rest of the upload (central directory or everything after an error) only goes to the file
+        IOUtils.copy(tee, NullOutputStream.INSTANCE);
+        return checksums;
+    }
+
     /**
      * If an unrecoverable error occurs this method saves the error in the tracking-database and
      * throws a (Runtime)Exception
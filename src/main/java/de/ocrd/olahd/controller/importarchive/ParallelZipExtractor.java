@@ -0,0 +1,187 @@
+package de.ocrd.olahd.controller.importarchive;
+
+import de.ocrd.olahd.utils.Utils;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Extract a zip file with several threads.
+ *
+ * The entries are read from the central directory and inflated concurrently, every thread reads its entries from the
+ * zip with random access. Entries pointing outside of the destination are rejected, the modification times of the
+ * entries are kept. Duration and throughput of every extraction are logged. If an entry fails, the entries not started
+ * yet are skipped and the running ones are waited for, so that nothing is written anymore when the extraction returns.
+ */
+public class ParallelZipExtractor {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    /** Shared by all imports, inflating is bound by CPU */
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "zip-extract-" + THREAD_COUNTER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    );
+
+    private ParallelZipExtractor() {
+    }
+
+    /**
+     * Extract all entries of the zip file
+     *
+     * @param zipPath     - the zip
+     * @param destination - directory to extract to
+     * @throws IOException also if an entry points outside of the destination
+     */
+    public static void extract(Path zipPath, Path destination) throws IOException {
+        long start = System.nanoTime();
+        Path root = destination.toAbsolutePath().normalize();
+        Files.createDirectories(root);
+
+        try (ZipFile zip = new ZipFile(zipPath.toFile())) {
+            // Check all entries and create the directories first, so that the threads only write files
+            List<ZipEntry> files = new ArrayList<>();
+            List<ZipEntry> directories = new ArrayList<>();
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                Path target = resolve(root, entry);
+                if (entry.isDirectory()) {
+                    Files.createDirectories(target);
+                    directories.add(entry);
+                } else {
+                    Files.createDirectories(target.getParent());
+                    files.add(entry);
+                }
+            }
+
+            AtomicBoolean failed = new AtomicBoolean();
+            List<Future<Long>> results = new ArrayList<>(files.size());
+            for (ZipEntry entry : files) {
+                results.add(EXECUTOR.submit(() -> failed.get() ? 0L : extractEntry(zip, entry, resolve(root, entry))));
+            }
+            long bytes = 0;
+            boolean done = false;
+            try {
+                for (Future<Long> result : results) {
+                    bytes += await(result);
+                }
+                done = true;
+            } finally {
+                if (!done) {
+                    // Do not start the remaining entries. Cancelling would not stop the running ones, but the caller
+                    // deletes the destination and the zip is closed after this
+                    failed.set(true);
+                    awaitAll(results);
+                }
+            }
+
+            // Set after the files are written, writing a file changes the time of its directory
+            for (ZipEntry entry : directories) {
+                setLastModifiedTime(resolve(root, entry), entry);
+            }
+            logThroughput(zipPath, files.size(), bytes, System.nanoTime() - start);
+        }
+    }
+
+    private static Path resolve(Path root, ZipEntry entry) throws ZipException {
+        Path target = root.resolve(entry.getName()).normalize();
+        if (!target.startsWith(root)) {
+            throw new ZipException("Zip entry is outside of the target directory: " + entry.getName());
+        }
+        return target;
+    }
+
+    private static long extractEntry(ZipFile zip, ZipEntry entry, Path target) throws IOException {
+        long size = 0;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = zip.getInputStream(entry); OutputStream out = Files.newOutputStream(target)) {
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                out.write(buffer, 0, length);
+                size += length;
+            }
+        }
+        setLastModifiedTime(target, entry);
+        return size;
+    }
+
+    private static void setLastModifiedTime(Path target, ZipEntry entry) throws IOException {
+        if (entry.getLastModifiedTime() != null) {
+            Files.setLastModifiedTime(target, entry.getLastModifiedTime());
+        }
+    }
+
+    private static long await(Future<Long> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Extracting zip entry failed", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while extracting zip");
+        }
+    }
+
+    /**
+     * Wait till all entries are finished or skipped, ignoring their results. Also if the thread is interrupted, the
+     * interrupt is kept for the caller
+     */
+    private static void awaitAll(List<Future<Long>> results) {
+        boolean interrupted = Thread.interrupted();
+        for (Future<Long> result : results) {
+            while (true) {
+                try {
+                    result.get();
+                    break;
+                } catch (ExecutionException e) {
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void logThroughput(Path zipPath, int files, long bytes, long nanos) {
+        double seconds = Math.max(nanos, 1) / 1e9;
+        Utils.logInfo(String.format(
+            Locale.ROOT, "Extracted %s: %d files, %d bytes in %.2f s (%.1f MB/s, %.0f files/s)", zipPath.getFileName(),
+            files, bytes, seconds, bytes / 1e6 / seconds, files / seconds
+        ));
+    }
+}
@@ -0,0 +1,71 @@
+package de.ocrd.olahd.controller.importarchive;
+
+import de.ocrd.olahd.utils.ChecksumUtils;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Extract a zip while it is read from a stream, e.g. from the upload request.
+ *
+ * Every entry is written to its extracted location once and its sha512 is calculated in the same pass, so the extracted
+ * files do not have to be read again for the manifest validation.
+ */
+public class StreamingZipExtractor {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private StreamingZipExtractor() {
+    }
+
+    /**
+     * Extract all entries of the zip. The stream is not closed.
+     *
+     * Not every zip can be read as a stream (e.g. stored entries with a data descriptor). In this case, or if an entry
+     * points outside of the destination, an exception is thrown and the caller has to extract the zip from a file.
+     *
+     * @param in          - the zip
+     * @param destination - directory to extract to
+     * @return sha512-checksums of the extracted files by path relative to destination (with '/' as separator)
+     * @throws IOException
+     */
+    public static Map<String, String> extract(InputStream in, Path destination) throws IOException {
+        Map<String, String> checksums = new HashMap<>();
+        Path root = destination.toAbsolutePath().normalize();
+        Files.createDirectories(root);
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        ZipInputStream zip = new ZipInputStream(in);
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            Path target = root.resolve(entry.getName()).normalize();
+            if (!target.startsWith(root)) {
+                throw new ZipException("Zip entry is outside of the target directory: " + entry.getName());
+            }
+            if (entry.isDirectory()) {
+                Files.createDirectories(target);
+                continue;
+            }
+            Files.createDirectories(target.getParent());
+
+            MessageDigest md = ChecksumUtils.newSha512();
+            try (OutputStream out = Files.newOutputStream(target)) {
+                int length;
+                while ((length = zip.read(buffer)) != -1) {
+                    md.update(buffer, 0, length);
+                    out.write(buffer, 0, length);
+                }
+            }
+            checksums.put(root.relativize(target).toString().replace('\\', '/'), ChecksumUtils.toHex(md.digest()));
+        }
+        return checksums;
+    }
+}
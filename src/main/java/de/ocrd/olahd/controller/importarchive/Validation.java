@@ -7,29 +7,85 @@ import de.ocrd.olahd.exceptions.OcrdzipInvalidException;
 import de.ocrd.olahd.utils.Utils;
 import gov.loc.repository.bagit.domain.Bag;
 import gov.loc.repository.bagit.domain.Metadata;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.stax.StAXSource;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
 import javax.xml.validation.Validator;
+import org.w3c.dom.ls.DOMImplementationLS;
+import org.w3c.dom.ls.LSInput;
 import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
 
 /**
  * Class with functions regarding validation of the import data
  */
 class Validation {
 
-    private static Schema METS_VALIDATION_SCHEMA;
+    private static final String METS_SCHEMA = "validation/mets-1121.xsd";
+
+    /** Local copies of the XSDs imported by the METS schema, by their location in the import */
+    private static final Map<String, String> BUNDLED_SCHEMAS = Map.of(
+        "http://www.loc.gov/standards/xlink/xlink.xsd", "validation/xlink.xsd"
+    );
+
+    private static volatile Schema metsValidationSchema;
+
+    /** Validators not in use. At most one per core is kept */
+    private static final BlockingQueue<Validator> VALIDATORS = new ArrayBlockingQueue<>(
+        Runtime.getRuntime().availableProcessors()
+    );
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+
+    private static final Timer VALIDATION_TIMER = Timer.builder("olahd.mets.validation")
+        .description("Time to validate a METS against the schema")
+        .register(Metrics.globalRegistry);
+
+    private static final DistributionSummary VALIDATION_PER_MB = DistributionSummary
+        .builder("olahd.mets.validation.perMb")
+        .description("Time to validate a METS against the schema per MB of the METS")
+        .baseUnit("seconds")
+        .register(Metrics.globalRegistry);
 
     private Validation() {}
 
+    private static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
     /**
      * Validates a bag against ocrd-zip specification: https://ocr-d.de/en/spec/ocrd_zip. This
      * function assumes path is existing and path is a valid extracted bagit. Because of that these
@@ -142,11 +198,143 @@ class Validation {
         }
     }
 
+    /**
+     * Check the structure of an OCRD-ZIP before it is extracted.
+     *
+     * Only the central directory and the small tag files are read: bagit.txt, bag-info.txt and the manifests must
+     * exist, bag-info.txt must contain the mandatory keys and reference existing files, Payload-Oxum must match the
+     * sizes of the entries and every file of the payload manifest must be in the zip. So an invalid upload is rejected
+     * before it is extracted and hashed. The complete validation of the extracted bag is still needed afterwards.
+     *
+     * @param zipPath the uploaded zip
+     * @throws OcrdzipInvalidException - if the zip is not a valid OCRD-ZIP
+     * @throws IOException if the zip cannot be read
+     */
+    static void precheckOcrdzip(Path zipPath) throws IOException {
+        List<String> res = new ArrayList<>();
+        try (ZipFile zip = new ZipFile(zipPath.toFile())) {
+            Map<String, ZipEntry> entries = new HashMap<>();
+            long payloadBytes = 0;
+            long payloadFiles = 0;
+            Enumeration<? extends ZipEntry> it = zip.entries();
+            while (it.hasMoreElements()) {
+                ZipEntry entry = it.nextElement();
+                entries.put(entry.getName(), entry);
+                if (!entry.isDirectory() && entry.getName().startsWith("data/")) {
+                    payloadBytes += entry.getSize();
+                    payloadFiles += 1;
+                }
+            }
+
+            if (!entries.containsKey("bagit.txt")) {
+                res.add("Bag must contain 'bagit.txt'");
+            }
+            if (!entries.containsKey(Constants.TAG_MANIFEST_NAME)) {
+                res.add("Tag-Manifest: '" + Constants.TAG_MANIFEST_NAME + "' not found");
+            }
+            if (!entries.containsKey(Constants.PAYLOAD_MANIFEST_NAME)) {
+                res.add(String.format("Ocrd-Zip must contain payloadmanifest '%s'", Constants.PAYLOAD_MANIFEST_NAME));
+            } else {
+                for (String line : readLines(zip, entries.get(Constants.PAYLOAD_MANIFEST_NAME))) {
+                    String[] parts = line.trim().split("\\s+", 2);
+                    if (parts.length == 2 && !entries.containsKey(parts[1])) {
+                        res.add(String.format("File '%s' of the payloadmanifest is missing", parts[1]));
+                        break;
+                    }
+                }
+            }
+
+            ZipEntry bagInfoEntry = entries.get("bag-info.txt");
+            if (bagInfoEntry == null) {
+                res.add("Bag must contain 'bag-info.txt'");
+                throw new OcrdzipInvalidException(res);
+            }
+            Map<String, String> bagInfo = readBagInfo(readLines(zip, bagInfoEntry));
+
+            if (!bagInfo.containsKey(Constants.BAGINFO_KEY_OCRD_IDENTIFIER)) {
+                res.add("bag-info.txt must contain key: 'Ocrd-Identifier'");
+            }
+            if (!bagInfo.containsKey(Constants.BAGINFO_KEY_METS)) {
+                if (!entries.containsKey("data/mets.xml")) {
+                    res.add(String.format(
+                        "mets.xml not found and '%s' not provided in bag-info.txt", Constants.BAGINFO_KEY_METS
+                    ));
+                }
+            } else if (!entries.containsKey("data/" + bagInfo.get(Constants.BAGINFO_KEY_METS))) {
+                res.add(String.format("'%s' is set, but specified file not existing", Constants.BAGINFO_KEY_METS));
+            }
+            for (String key : List.of(Constants.BAGINFO_KEY_IMAGE_FILEGRP, Constants.BAGINFO_KEY_FULLTEXT_FILEGRP)) {
+                String fileGrp = bagInfo.get(key);
+                String prefix = "data/" + fileGrp + "/";
+                if (fileGrp != null && entries.keySet().stream().noneMatch(x -> x.startsWith(prefix))) {
+                    res.add(String.format(
+                        "'%s' is provided, but specified File-Grp (%s) is not existing", key, fileGrp
+                    ));
+                }
+            }
+
+            String oxum = bagInfo.get(Constants.BAGINFO_KEY_PAYLOAD_OXUM);
+            String actualOxum = payloadBytes + "." + payloadFiles;
+            if (oxum != null && !oxum.equals(actualOxum)) {
+                res.add(String.format(
+                    "'%s' of bag-info.txt (%s) does not match the payload (%s)", Constants.BAGINFO_KEY_PAYLOAD_OXUM,
+                    oxum, actualOxum
+                ));
+            }
+        }
+
+        if (!res.isEmpty()) {
+            throw new OcrdzipInvalidException(res);
+        }
+    }
+
+    private static List<String> readLines(ZipFile zip, ZipEntry entry) throws IOException {
+        try (BufferedReader br = new BufferedReader(
+            new InputStreamReader(zip.getInputStream(entry), StandardCharsets.UTF_8)
+        )) {
+            return br.lines().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Read the lines of bag-info.txt ("key: value", a value can be continued on lines starting with whitespace). Only
+     * the first value of a key is kept
+     */
+    private static Map<String, String> readBagInfo(List<String> lines) {
+        Map<String, String> res = new HashMap<>();
+        String key = null;
+        StringBuilder value = new StringBuilder();
+        for (String line : lines) {
+            if (!line.isEmpty() && Character.isWhitespace(line.charAt(0)) && key != null) {
+                value.append(' ').append(line.trim());
+                continue;
+            }
+            if (key != null) {
+                res.putIfAbsent(key, value.toString());
+            }
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                key = null;
+                continue;
+            }
+            key = line.substring(0, colon).trim();
+            value = new StringBuilder(line.substring(colon + 1).trim());
+        }
+        if (key != null) {
+            res.putIfAbsent(key, value.toString());
+        }
+        return res;
+    }
+
     /**
      * Validate that mets adheres to its xsd
      *
+     * The METS is read with a StAX reader and validated with a validator from the pool. Time of the validation per MB
+     * of the METS is recorded as `olahd.mets.validation.perMb`.
+     *
      * @param bag
      * @throws MetsInvalidException - if mets of bag is invalid
+     * @throws MetsSchemaException - if the schema cannot be created
      */
     static void validateMetsfileSchema(Bag bag) {
         var metadata = bag.getMetadata();
@@ -157,28 +345,135 @@ class Validation {
         } else {
             mets = bag.getRootDir().resolve("data").resolve("mets.xml");
         }
+        Validator validator = borrowValidator();
+        long start = System.nanoTime();
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(mets))) {
+            XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+            try {
+                validator.validate(new StAXSource(reader));
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | SAXException | XMLStreamException e) {
+            throw new MetsInvalidException(readableMessage(e));
+        } finally {
+            VALIDATORS.offer(validator);
+        }
+        recordValidationTime(mets, System.nanoTime() - start);
+    }
+
+    /**
+     * Compile the METS schema now instead of during the first import
+     */
+    static void prewarmMetsValidation() {
+        try {
+            VALIDATORS.offer(borrowValidator());
+        } catch (MetsSchemaException e) {
+            // Logged already, tried again with the next import
+        }
+    }
+
+    /**
+     * Take a validator from the pool or create a new one. Validators are not thread-safe, so every one is used by one
+     * validation at a time and put back afterwards
+     */
+    private static Validator borrowValidator() {
+        Validator validator = VALIDATORS.poll();
+        if (validator != null) {
+            return validator;
+        }
+        validator = getMetsValidationSchema().newValidator();
+        try {
+            // Only the compiled schema is used, nothing referenced by the METS is fetched
+            validator.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+            validator.setProperty(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
+        } catch (SAXException e) {
+            throw new MetsSchemaException("Error creating XML validator", e);
+        }
+        return validator;
+    }
+
+    /**
+     * The message of the SAXParseException, which is wrapped several times when validating a StAXSource
+     */
+    private static String readableMessage(Exception e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SAXParseException) {
+                return t.getMessage();
+            }
+        }
+        return e.getMessage();
+    }
+
+    private static void recordValidationTime(Path mets, long nanos) {
+        VALIDATION_TIMER.record(nanos, TimeUnit.NANOSECONDS);
         try {
-            var schema = getMetsValidationSchema();
-            Validator validator = schema.newValidator();
-            validator.validate(new StreamSource(mets.toFile()));
-        } catch (IOException | SAXException e) {
-            throw new MetsInvalidException(e.getMessage());
+            double mb = Math.max(Files.size(mets), 1) / 1e6;
+            VALIDATION_PER_MB.record(nanos / 1e9 / mb);
+        } catch (IOException e) {
+            // Not recorded, the size is only needed for the metric
         }
     }
 
+    /**
+     * The schema is compiled once and shared, a Schema is thread-safe
+     */
     private static Schema getMetsValidationSchema() {
-        if (Validation.METS_VALIDATION_SCHEMA == null) {
+        Schema schema = metsValidationSchema;
+        if (schema == null) {
+            synchronized (Validation.class) {
+                if (metsValidationSchema == null) {
+                    metsValidationSchema = compileMetsValidationSchema();
+                }
+                schema = metsValidationSchema;
+            }
+        }
+        return schema;
+    }
+
+    /**
+     * Compile the METS schema from the bundled XSDs. Imports of other XSDs are resolved to the local copies in
+     * BUNDLED_SCHEMAS, all other network access is disabled
+     */
+    private static Schema compileMetsValidationSchema() {
+        long start = System.nanoTime();
+        try {
             var factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-            InputStream is = Validation.class.getClassLoader().getResourceAsStream("validation/mets-1121.xsd");
-            try {
-                Validation.METS_VALIDATION_SCHEMA = factory.newSchema(new StreamSource(is));
-            } catch (Exception e) {
-                // This error happened to me once when loc.gov was under maintenance. Seems when generating the scheme a
-                // request to loc.gov is made, which might fail. Seems nothing then waiting can be done about it
-                Utils.logError("Error creating XML validation schema", e);
-                throw new MetsSchemaException("Error creating XML validation schema", e);
+            factory.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+            factory.setProperty(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
+            factory.setResourceResolver(Validation::resolveBundledSchema);
+            URL mets = Validation.class.getClassLoader().getResource(METS_SCHEMA);
+            Schema schema;
+            try (InputStream in = mets.openStream()) {
+                schema = factory.newSchema(new StreamSource(in, mets.toExternalForm()));
             }
+            Utils.logInfo(String.format(
+                "Compiled METS validation schema in %d ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+            ));
+            return schema;
+        } catch (Exception e) {
+            Utils.logError("Error creating XML validation schema", e);
+            throw new MetsSchemaException("Error creating XML validation schema", e);
+        }
+    }
+
+    private static LSInput resolveBundledSchema(
+        String type, String namespaceUri, String publicId, String systemId, String baseUri
+    ) {
+        String resource = BUNDLED_SCHEMAS.get(systemId);
+        if (resource == null) {
+            // Not fetched because network access is disabled, compiling fails if the schema is needed
+            return null;
+        }
+        try {
+            LSInput input = ((DOMImplementationLS) DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .getDOMImplementation()).createLSInput();
+            input.setByteStream(Validation.class.getClassLoader().getResourceAsStream(resource));
+            input.setSystemId(systemId);
+            input.setPublicId(publicId);
+            return input;
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException("Cannot resolve schema " + systemId, e);
         }
-        return Validation.METS_VALIDATION_SCHEMA;
     }
 }
@@ -0,0 +1,55 @@
+package de.ocrd.olahd.domain;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import org.springframework.http.HttpHeaders;
+
+/**
+ * Like {@link HttpFile} but the content is a stream which is not read into memory.
+ *
+ * Must be closed after reading to release the underlying resource (e.g. the connection to the archive).
+ */
+public class HttpFileStream implements Closeable {
+
+    private final int status;
+
+    private final InputStream content;
+
+    private final Closeable resource;
+
+    private HttpHeaders headers;
+
+    public HttpFileStream(int status, InputStream content, Closeable resource) {
+        this.status = status;
+        this.content = content;
+        this.resource = resource;
+        this.headers = new HttpHeaders();
+    }
+
+    /** HTTP status of the file response, 206 if only parts of the file are contained */
+    public int getStatus() {
+        return status;
+    }
+
+    public InputStream getContent() {
+        return content;
+    }
+
+    public HttpHeaders getHeaders() {
+        return headers;
+    }
+
+    public void addHeaders(String key, String value) {
+        headers.add(key, value);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            content.close();
+        } finally {
+            resource.close();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package de.ocrd.olahd.domain;
+
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.Set;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * State of an import to CDSTAR which is not committed yet.
+ *
+ * Used to resume an import after an error: the open transaction, the archives created in it and the files which are
+ * already uploaded. Files are uploaded concurrently, access to the uploaded files is synchronized on the checkpoint.
+ * Synchronize on it when saving it as well.
+ */
+@Document(collection = "importCheckpoint")
+public class ImportCheckpoint {
+
+    // PID of the imported archive
+    @Id
+    private String pid;
+
+    // CDSTAR transaction of the import
+    private String txId;
+
+    // CDSTAR-ID of the online archive created in the transaction
+    private String onlineArchiveId;
+
+    // CDSTAR-ID of the offline archive created in the transaction. Empty if tape storage is not used
+    private String offlineArchiveId;
+
+    // Paths (relative to the bag) of the files uploaded to all archives
+    private Set<String> uploadedFiles = new HashSet<>();
+
+    private Instant updatedAt;
+
+    protected ImportCheckpoint() {
+        // no-args constructor required by JPA spec
+        // this one is protected since it shouldn't be used directly
+    }
+
+    public ImportCheckpoint(String pid, String txId, String onlineArchiveId, String offlineArchiveId) {
+        this.pid = pid;
+        this.txId = txId;
+        this.onlineArchiveId = onlineArchiveId;
+        this.offlineArchiveId = offlineArchiveId;
+        this.updatedAt = Instant.now();
+    }
+
+    public String getPid() {
+        return pid;
+    }
+
+    public String getTxId() {
+        return txId;
+    }
+
+    public String getOnlineArchiveId() {
+        return onlineArchiveId;
+    }
+
+    public String getOfflineArchiveId() {
+        return offlineArchiveId;
+    }
+
+    public synchronized boolean isUploaded(String path) {
+        return uploadedFiles.contains(path);
+    }
+
+    /**
+     * Remember a file as uploaded. Can be called from multiple threads
+     *
+     * @return number of uploaded files
+     */
+    public synchronized int markUploaded(String path) {
+        uploadedFiles.add(path);
+        return uploadedFiles.size();
+    }
+
+    public synchronized int getUploadedCount() {
+        return uploadedFiles.size();
+    }
+
+    public Instant getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(Instant updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+}
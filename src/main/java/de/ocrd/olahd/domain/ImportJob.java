@@ -0,0 +1,172 @@
+package de.ocrd.olahd.domain;
+
+import java.time.Instant;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * An accepted import which is not finished yet.
+ *
+ * Stored so that queued and running imports can be started again after a restart and so that imports accepted by one
+ * instance can be run by another one. A worker claims a job by setting itself as owner and renews the lease while the
+ * import is running. Jobs without owner or with an expired lease can be claimed by any worker. The job is deleted when
+ * the import is finished, successful or not.
+ *
+ * With asynchronous validation the job is stored right after the upload. It is not validated and has no PID then,
+ * the worker validates it and creates the PID first.
+ */
+@Document(collection = "importJob")
+public class ImportJob {
+
+    // ID of the TrackingInfo of the import
+    @Id
+    private String trackingId;
+
+    // PID of the imported archive, null if not validated yet
+    private String pid;
+
+    // The upload is validated and the PID is created
+    private boolean validated;
+
+    // Path to the uploaded OCRD-ZIP
+    private String zipFile;
+
+    // Who started the import
+    private String username;
+
+    // Path to the extracted OCRD-ZIP, null if not validated yet
+    private String destination;
+
+    // Temporary directory of the import, deleted after the import
+    private String tempDir;
+
+    // PID of the previous version, can be null
+    private String prevPid;
+
+    // URL where the archive will be available, sent to the PID-Service
+    private String exportUrl;
+
+    // Run with the priority of bulk imports
+    private boolean bulk;
+
+    private ImportJobStatus status;
+
+    // ID of the worker running the import, null if not claimed yet
+    private String owner;
+
+    // The owner must renew the lease till then, afterwards the job can be claimed by another worker
+    private Instant leaseUntil;
+
+    private Instant createdAt;
+
+    private Instant startedAt;
+
+    protected ImportJob() {
+        // no-args constructor required by JPA spec
+        // this one is protected since it shouldn't be used directly
+    }
+
+    public ImportJob(
+        String pid, String trackingId, String username, String destination, String tempDir, String prevPid,
+        String exportUrl, boolean bulk
+    ) {
+        this.pid = pid;
+        this.validated = true;
+        this.trackingId = trackingId;
+        this.username = username;
+        this.destination = destination;
+        this.tempDir = tempDir;
+        this.prevPid = prevPid;
+        this.exportUrl = exportUrl;
+        this.bulk = bulk;
+        this.status = ImportJobStatus.QUEUED;
+        this.createdAt = Instant.now();
+    }
+
+    /**
+     * Job of an upload which is not validated yet
+     */
+    public ImportJob(
+        String trackingId, String username, String zipFile, String tempDir, String prevPid, String exportUrl,
+        boolean bulk
+    ) {
+        this.trackingId = trackingId;
+        this.validated = false;
+        this.username = username;
+        this.zipFile = zipFile;
+        this.tempDir = tempDir;
+        this.prevPid = prevPid;
+        this.exportUrl = exportUrl;
+        this.bulk = bulk;
+        this.status = ImportJobStatus.QUEUED;
+        this.createdAt = Instant.now();
+    }
+
+    public String getPid() {
+        return pid;
+    }
+
+    public String getTrackingId() {
+        return trackingId;
+    }
+
+    public boolean isValidated() {
+        return validated;
+    }
+
+    public String getZipFile() {
+        return zipFile;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    public String getTempDir() {
+        return tempDir;
+    }
+
+    public String getPrevPid() {
+        return prevPid;
+    }
+
+    public String getExportUrl() {
+        return exportUrl;
+    }
+
+    public boolean isBulk() {
+        return bulk;
+    }
+
+    public ImportJobStatus getStatus() {
+        return status;
+    }
+
+    public void setStatus(ImportJobStatus status) {
+        this.status = status;
+    }
+
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+
+    public Instant getStartedAt() {
+        return startedAt;
+    }
+
+    public void setStartedAt(Instant startedAt) {
+        this.startedAt = startedAt;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public Instant getLeaseUntil() {
+        return leaseUntil;
+    }
+}
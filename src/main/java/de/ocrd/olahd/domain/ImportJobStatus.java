@@ -0,0 +1,8 @@
+package de.ocrd.olahd.domain;
+
+public enum ImportJobStatus {
+    /** The import is accepted and waits for a free worker */
+    QUEUED,
+    /** A worker is importing the bag */
+    RUNNING,
+}
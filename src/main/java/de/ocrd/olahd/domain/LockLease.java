@@ -0,0 +1,48 @@
+package de.ocrd.olahd.domain;
+
+import java.time.Instant;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * A lock held by an instance of the backend, see MongoLockProvider.
+ *
+ * The lock is held until it is deleted or till its lease has expired. Expired leases are removed by a TTL index, but
+ * are treated as released before already.
+ */
+@Document(collection = "lockLease")
+public class LockLease {
+
+    // The locked key
+    @Id
+    private String key;
+
+    // Instance, thread and a random ID of the holder
+    private String owner;
+
+    // Fencing token of the holder, increases with every acquisition. 0 till it is assigned
+    private long token;
+
+    private Instant expiresAt;
+
+    protected LockLease() {
+        // no-args constructor required by JPA spec
+        // this one is protected since it shouldn't be used directly
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public long getToken() {
+        return token;
+    }
+
+    public Instant getExpiresAt() {
+        return expiresAt;
+    }
+}
@@ -0,0 +1,157 @@
+package de.ocrd.olahd.domain;
+
+import java.time.Instant;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * Changes of the data of a PID which are not sent to the PID-Service yet, see PidWriteBehind.
+ *
+ * All changes of a PID are merged into one document: a replacement of the data (like PidService.updatePid) and data
+ * appended afterwards (like PidService.appendData). A new replacement drops what was appended before. A deletion of the
+ * PID is stored as tombstone in the same document, so it is not sent before or while data of the PID is written.
+ */
+@Document(collection = "pidUpdate")
+public class PidUpdate {
+
+    @Id
+    private String pid;
+
+    // New data of the PID, null if the existing data is kept
+    private List<Entry> replacement;
+
+    // Data added after the replacement, or to the existing data
+    private List<Entry> appended = new ArrayList<>();
+
+    // The PID is to be deleted, its data is not written anymore
+    private boolean deleted;
+
+    // Increased with every change, to detect changes made while the update is written
+    private long version;
+
+    // Time of the first change not written yet
+    private Instant createdAt;
+
+    // Not to be written before, to collect more changes or to wait after a failed write
+    private Instant notBefore;
+
+    // Failed writes in a row
+    private int attempts;
+
+    // Token of the claim of the writer, null if not claimed
+    private String owner;
+
+    // The claim expires then, afterwards the update can be claimed by another writer
+    private Instant leaseUntil;
+
+    protected PidUpdate() {
+        // no-args constructor required by JPA spec
+        // this one is protected since it shouldn't be used directly
+    }
+
+    public PidUpdate(String pid, List<Entry> replacement, List<Entry> appended) {
+        this.pid = pid;
+        this.replacement = replacement;
+        this.appended = new ArrayList<>(appended);
+        this.createdAt = Instant.now();
+        this.notBefore = this.createdAt;
+    }
+
+    public String getPid() {
+        return pid;
+    }
+
+    public List<Entry> getReplacement() {
+        return replacement;
+    }
+
+    public List<Entry> getAppended() {
+        return appended;
+    }
+
+    public boolean isDeleted() {
+        return deleted;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+     * The data to append if the existing data is kept, otherwise the complete new data
+     */
+    public List<AbstractMap.SimpleImmutableEntry<String, String>> getData() {
+        List<Entry> data = new ArrayList<>();
+        if (replacement != null) {
+            data.addAll(replacement);
+        }
+        data.addAll(appended);
+        return data.stream().map(Entry::toPidEntry).collect(Collectors.toList());
+    }
+
+    /**
+     * What is left of this update after the written one, which was claimed before this was changed further
+     *
+     * @param written - earlier state of this update, which is sent to the PID-Service
+     * @return the data appended after the written state, or null if everything has to be written again because the
+     *         data was replaced
+     */
+    public List<Entry> appendedAfter(PidUpdate written) {
+        if (replacement != null) {
+            return null;
+        }
+        // Appending does not change the entries appended before, so the written ones are the first
+        return new ArrayList<>(appended.subList(Math.min(written.appended.size(), appended.size()), appended.size()));
+    }
+
+    /**
+     * One key-value pair of the data of a PID
+     */
+    public static class Entry {
+
+        private String key;
+
+        private String value;
+
+        protected Entry() {
+            // no-args constructor required by JPA spec
+        }
+
+        public Entry(String key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        public static List<Entry> of(List<AbstractMap.SimpleImmutableEntry<String, String>> data) {
+            return data.stream().map(x -> new Entry(x.getKey(), x.getValue())).collect(Collectors.toList());
+        }
+
+        public AbstractMap.SimpleImmutableEntry<String, String> toPidEntry() {
+            return new AbstractMap.SimpleImmutableEntry<>(key, value);
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getValue() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package de.ocrd.olahd.domain;
+
+import java.time.Instant;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * A PID created ahead of time which is not used by an import yet, see PidPool
+ */
+@Document(collection = "pidPool")
+public class PooledPid {
+
+    @Id
+    private String pid;
+
+    private Instant createdAt;
+
+    protected PooledPid() {
+        // no-args constructor required by JPA spec
+        // this one is protected since it shouldn't be used directly
+    }
+
+    public PooledPid(String pid) {
+        this.pid = pid;
+        this.createdAt = Instant.now();
+    }
+
+    public String getPid() {
+        return pid;
+    }
+
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+}
@@ -23,6 +23,9 @@ public class ResponseMessage {
     @ApiModelProperty(value = "PID of the uploaded data")
     private String pid;
 
+    @ApiModelProperty(value = "ID of the import in the import status")
+    private String trackingId;
+
     @ApiModelProperty(value = "The time when the request was made")
     private Instant timestamp;
 
@@ -64,6 +67,14 @@ public class ResponseMessage {
         this.pid = pid;
     }
 
+    public String getTrackingId() {
+        return trackingId;
+    }
+
+    public void setTrackingId(String trackingId) {
+        this.trackingId = trackingId;
+    }
+
     public Instant getTimestamp() {
         return timestamp;
     }
@@ -0,0 +1,13 @@
+package de.ocrd.olahd.exceptions;
+
+/**
+ * This exception is thrown if the lease of an import job was lost, so the import may be run by another worker
+ */
+public class LeaseLostException extends RuntimeException {
+
+    private static final long serialVersionUID = -2319064823512734019L;
+
+    public LeaseLostException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,19 @@
+package de.ocrd.olahd.exceptions;
+
+import de.ocrd.olahd.component.MutexFactory;
+
+/**
+ * This exception is thrown by the {@linkplain MutexFactory} if a lock could not be acquired in time
+ */
+public class LockTimeoutException extends RuntimeException {
+
+    private static final long serialVersionUID = 4381162835709142379L;
+
+    public LockTimeoutException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public LockTimeoutException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,9 @@
+package de.ocrd.olahd.repository.mongo;
+
+import de.ocrd.olahd.domain.ImportCheckpoint;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface ImportCheckpointRepository extends MongoRepository<ImportCheckpoint, String> {
+}
@@ -0,0 +1,13 @@
+package de.ocrd.olahd.repository.mongo;
+
+import de.ocrd.olahd.domain.ImportJob;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface ImportJobRepository extends MongoRepository<ImportJob, String> {
+
+    long countByUsername(String username);
+
+    long countByOwnerIsNull();
+}
@@ -1,6 +1,7 @@
 package de.ocrd.olahd.service;
 
 import de.ocrd.olahd.domain.HttpFile;
+import de.ocrd.olahd.domain.HttpFileStream;
 import de.ocrd.olahd.domain.ImportResult;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -9,6 +10,7 @@ import java.util.AbstractMap;
 import java.util.List;
 import java.util.Map;
 import okhttp3.Response;
+import org.springframework.http.HttpHeaders;
 
 public interface ArchiveManagerService {
 
@@ -40,6 +42,38 @@ public interface ArchiveManagerService {
                                List<AbstractMap.SimpleImmutableEntry<String, String>> metaData,
                                String prevPid) throws IOException;
 
+    /**
+     * Import a ZIP file which is still being validated.
+     *
+     * The files are uploaded while the validation is running, but the import is only committed after the gate let it
+     * pass. If the gate fails, the import fails with the error of the gate and can be given up with
+     * {@linkplain #abortImport(String)}.
+     *
+     * @param extractedDir The path to the folder where the ZIP file was extracted
+     * @param pid          The PID which was assigned for this file
+     * @param metaData     The list of meta-data of this ZIP
+     * @param prevPid      The PID of the previous version, null for the first version
+     * @param gate         Conditions for committing the import, e.g. the validation of the extracted files. Can be null
+     * @return Meta-data from the import process (e.g. URL to archive on disk / tape)
+     * @throws IOException Thrown if something's wrong when connecting to different services
+     */
+    ImportResult importZipFile(Path extractedDir,
+                               String pid,
+                               List<AbstractMap.SimpleImmutableEntry<String, String>> metaData,
+                               String prevPid,
+                               ImportGate gate) throws IOException;
+
+    /**
+     * Give up an import which failed, also after retries.
+     *
+     * A failed import keeps its state so that calling importZipFile again with the same PID resumes it. This discards
+     * that state and everything uploaded for the import so far.
+     *
+     * @param pid The PID of the failed import
+     * @throws IOException Thrown if something's wrong when connecting to the archive services
+     */
+    void abortImport(String pid) throws IOException;
+
     /**
      * Export an archive from the hard drive or tape.
      *
@@ -120,6 +154,23 @@ public interface ArchiveManagerService {
      */
     HttpFile getFile(String id, String path, boolean infoOnly, boolean internalId) throws IOException;
 
+    /**
+     * Get a file from the specified archive as a stream.
+     *
+     * In contrast to {@linkplain #getFile(String, String, boolean, boolean)} the file is not read into memory. The
+     * returned object must be closed to release the connection to the archive.
+     *
+     * @param id             The ID of the archive
+     * @param path           Path to the file
+     * @param internalId     Is the id a PID (false) or a cdstar-archive-id
+     * @param requestHeaders Headers of the client's request. Range and If-Range are passed to the archive. Can be null
+     *
+     * @return An object wrapping status (200 or 206), necessary headers and the stream of the file
+     * @throws IOException Thrown if something's wrong when connecting to the archive services
+     */
+    HttpFileStream getFileStream(String id, String path, boolean internalId, HttpHeaders requestHeaders)
+        throws IOException;
+
     /**
      * Get bag-info.txt from OCRD-ZIP for provided id, converted into a Map.
      *
@@ -142,6 +193,20 @@ public interface ArchiveManagerService {
      */
     Response exportFile(String id, String path) throws IOException;
 
+    /**
+     * Get the file from the archive via it's PID/PPA and path, optionally only a part of it.
+     *
+     * Same as {@linkplain #exportFile(String, String)}, but Range and If-Range headers of the client are passed to
+     * the archive. The response has status 206 if only parts of the file are returned.
+     *
+     * @param id             identifier of archive (PID/PPA)
+     * @param path           Path to the file inside archive
+     * @param requestHeaders Headers of the client's request. Can be null
+     * @return The {@link Response} object to get the stream and close it properly.
+     * @throws IOException Thrown if something's wrong when connecting to the archive services
+     */
+    Response exportFile(String id, String path, HttpHeaders requestHeaders) throws IOException;
+
     /**
      * Reads the METS from the archive via it's PID/PPA
      *
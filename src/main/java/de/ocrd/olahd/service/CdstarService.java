@@ -2,29 +2,60 @@ package de.ocrd.olahd.service;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import de.ocrd.olahd.Constants;
+import de.ocrd.olahd.component.ArchiveIdCache;
+import de.ocrd.olahd.component.CdstarBulkImport;
+import de.ocrd.olahd.component.CdstarClient;
+import de.ocrd.olahd.component.DownloadPrefetcher;
+import de.ocrd.olahd.component.UploadExecutor;
+import de.ocrd.olahd.component.ZipCompressionPolicy;
 import de.ocrd.olahd.domain.HttpFile;
+import de.ocrd.olahd.domain.HttpFileStream;
+import de.ocrd.olahd.domain.ImportCheckpoint;
 import de.ocrd.olahd.domain.ImportResult;
 import de.ocrd.olahd.domain.SearchRequest;
 import de.ocrd.olahd.domain.SearchResults;
+import de.ocrd.olahd.exceptions.BagitChecksumException;
 import de.ocrd.olahd.msg.ErrMsg;
+import de.ocrd.olahd.repository.mongo.ImportCheckpointRepository;
+import de.ocrd.olahd.utils.ChecksumUtils;
 import de.ocrd.olahd.utils.Utils;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
-import java.util.zip.ZipEntry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.zip.ZipOutputStream;
 import javax.annotation.PostConstruct;
+import net.jodah.failsafe.Failsafe;
+import net.jodah.failsafe.FailsafeException;
+import net.jodah.failsafe.RetryPolicy;
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.Credentials;
 import okhttp3.Headers;
 import okhttp3.HttpUrl;
@@ -34,6 +65,7 @@ import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import okio.BufferedSink;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.tika.Tika;
 import org.jdom2.Document;
@@ -42,6 +74,7 @@ import org.jdom2.JDOMException;
 import org.jdom2.Namespace;
 import org.jdom2.input.SAXBuilder;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.HttpClientErrorException;
@@ -80,12 +113,68 @@ public class CdstarService implements ArchiveManagerService, SearchService {
     @Value("${cdstar.useTapestorage:true}")
     private boolean useTapeStorage;
 
+    /** Read every file only once during an import and send it to online and offline archive at the same time */
+    @Value("${cdstar.upload.readOnce:true}")
+    private boolean readOnce;
+
+    /** Files up to this size (bytes) are read into memory for the upload. Larger files are memory mapped */
+    @Value("${cdstar.upload.memoryBufferSize:4194304}")
+    private long memoryBufferSize;
+
+    /** Number of retries for uploading a single file */
+    @Value("${cdstar.upload.fileRetries:3}")
+    private int fileRetries;
+
+    /** The checkpoint of an import is saved to the database after this number of uploaded files */
+    @Value("${cdstar.upload.checkpointInterval:100}")
+    private int checkpointInterval;
+
+    /** Retries for uploading a single file. Only connection errors and server errors of CDSTAR are retried */
+    private RetryPolicy<Object> fileRetryPolicy;
+
+    /** Checkpoints of the imports which are not committed yet */
+    private final Map<String, ImportCheckpoint> checkpoints = new ConcurrentHashMap<>();
+
+    private final CdstarClient cdstarClient;
+
+    private final UploadExecutor uploadExecutor;
+
+    private final ArchiveIdCache archiveIdCache;
+
+    private final DownloadPrefetcher downloadPrefetcher;
+
+    private final ZipCompressionPolicy zipCompressionPolicy;
+
+    private final ImportCheckpointRepository importCheckpointRepository;
+
+    private final CdstarBulkImport cdstarBulkImport;
+
+    public CdstarService(
+        CdstarClient cdstarClient, UploadExecutor uploadExecutor, ArchiveIdCache archiveIdCache,
+        DownloadPrefetcher downloadPrefetcher, ZipCompressionPolicy zipCompressionPolicy,
+        ImportCheckpointRepository importCheckpointRepository, CdstarBulkImport cdstarBulkImport
+    ) {
+        this.cdstarClient = cdstarClient;
+        this.uploadExecutor = uploadExecutor;
+        this.archiveIdCache = archiveIdCache;
+        this.downloadPrefetcher = downloadPrefetcher;
+        this.zipCompressionPolicy = zipCompressionPolicy;
+        this.importCheckpointRepository = importCheckpointRepository;
+        this.cdstarBulkImport = cdstarBulkImport;
+    }
+
     @PostConstruct
     private void validateService() {
         if (!useTapeStorage && StringUtils.isNotBlank(offlineMimeTypes)) {
             throw new RuntimeException("'offline.mimeTypes' can only be used when tape storage is used, but"
                 + " 'cdstar.useTapestorage' is set to false");
         }
+        fileRetryPolicy = new RetryPolicy<>()
+            .handleIf(e -> e instanceof IOException
+                || e instanceof HttpServerErrorException
+                    && ((HttpServerErrorException) e).getStatusCode().is5xxServerError())
+            .withBackoff(1, 30, ChronoUnit.SECONDS)
+            .withMaxRetries(fileRetries);
     }
 
     /**
@@ -94,26 +183,50 @@ public class CdstarService implements ArchiveManagerService, SearchService {
      */
     private static final String NOT_FOUND = "NOT_FOUND";
 
+    /** Headers of a client's range request which are passed to CDSTAR */
+    private static final String[] RANGE_REQUEST_HEADERS = { HttpHeaders.RANGE, HttpHeaders.IF_RANGE };
+
+    /** Headers of a (partial) file response of CDSTAR which are passed to the client */
+    private static final String[] RANGE_RESPONSE_HEADERS = {
+        HttpHeaders.CONTENT_TYPE, HttpHeaders.CONTENT_LENGTH, HttpHeaders.CONTENT_RANGE, HttpHeaders.ACCEPT_RANGES
+    };
+
     @Override
     public ImportResult importZipFile(Path extractedDir,
                                       String pid,
                                       List<AbstractMap.SimpleImmutableEntry<String, String>> metaData) throws IOException {
+        return importZipFile(extractedDir, pid, metaData, null, null);
+    }
 
-        String txId = null;
+    @Override
+    public ImportResult importZipFile(Path extractedDir, String pid,
+                                      List<AbstractMap.SimpleImmutableEntry<String, String>> metaData,
+                                      String prevPid) throws IOException {
+        return importZipFile(extractedDir, pid, metaData, prevPid, null);
+    }
 
-        try {
-            // Get the transaction ID
-            txId = getTransactionId();
+    @Override
+    public ImportResult importZipFile(Path extractedDir, String pid,
+                                      List<AbstractMap.SimpleImmutableEntry<String, String>> metaData,
+                                      String prevPid, ImportGate gate) throws IOException {
+        if (prevPid != null) {
+            return importNewVersion(extractedDir, pid, metaData, prevPid, gate);
+        }
 
-            String offlineArchiveId = "";
+        ImportCheckpoint checkpoint = null;
 
-            String onlineArchiveId = createArchive(txId, false);
-            if (useTapeStorage) {
-                offlineArchiveId = createArchive(txId, true);
+        try {
+            // Get the transaction and the archives, or the ones of a previous try of this import
+            checkpoint = beginOrResumeImport(pid);
+            String txId = checkpoint.getTxId();
+            String onlineArchiveId = checkpoint.getOnlineArchiveId();
+            String offlineArchiveId = checkpoint.getOfflineArchiveId();
+
+            uploadData(extractedDir, checkpoint, gate);
+            if (gate != null) {
+                gate.awaitCommit();
             }
 
-            uploadData(extractedDir, txId, onlineArchiveId, offlineArchiveId);
-
             // Update archive meta-data
             setArchiveMetaData(onlineArchiveId, metaData, pid, txId);
             if (useTapeStorage) {
@@ -122,6 +235,7 @@ public class CdstarService implements ArchiveManagerService, SearchService {
 
             // Commit the transaction
             commitTransaction(txId);
+            finishImport(pid);
 
             // Meta-data for PID
             List<AbstractMap.SimpleImmutableEntry<String, String>> pidMetaData = new ArrayList<>();
@@ -132,20 +246,17 @@ public class CdstarService implements ArchiveManagerService, SearchService {
 
             return new ImportResult(onlineArchiveId, offlineArchiveId, pidMetaData);
         } catch (Exception ex) {
-            if (txId != null) {
-                rollbackTransaction(txId);
-            }
-
+            // The transaction stays open so that a retry can resume. See abortImport
+            saveCheckpoint(checkpoint);
             throw ex;
         }
     }
 
-    @Override
-    public ImportResult importZipFile(Path extractedDir, String pid,
-                                      List<AbstractMap.SimpleImmutableEntry<String, String>> metaData,
-                                      String prevPid) throws IOException {
+    private ImportResult importNewVersion(Path extractedDir, String pid,
+                                          List<AbstractMap.SimpleImmutableEntry<String, String>> metaData,
+                                          String prevPid, ImportGate gate) throws IOException {
 
-        String txId = null;
+        ImportCheckpoint checkpoint = null;
 
         try {
             // Get the online archive of the previous version
@@ -156,17 +267,17 @@ public class CdstarService implements ArchiveManagerService, SearchService {
                         HttpStatus.BAD_REQUEST, "Previous version with PID " + prevPid + " was not found.");
             }
 
-            // Get the transaction ID
-            txId = getTransactionId();
+            // Get the transaction and the archives, or the ones of a previous try of this import
+            checkpoint = beginOrResumeImport(pid);
+            String txId = checkpoint.getTxId();
+            String onlineArchiveId = checkpoint.getOnlineArchiveId();
+            String offlineArchiveId = checkpoint.getOfflineArchiveId();
 
-            String onlineArchiveId = createArchive(txId, false);
-            String offlineArchiveId = "";
-            if (useTapeStorage) {
-                offlineArchiveId = createArchive(txId, true);
+            uploadData(extractedDir, checkpoint, gate);
+            if (gate != null) {
+                gate.awaitCommit();
             }
 
-            uploadData(extractedDir, txId, onlineArchiveId, offlineArchiveId);
-
             // Update archive meta-data of current version
             setArchiveMetaData(onlineArchiveId, metaData, pid, txId);
             if (useTapeStorage) {
@@ -175,16 +286,22 @@ public class CdstarService implements ArchiveManagerService, SearchService {
 
             // Delete the previous version on the hard drive
             // Only store the latest version on the hard drive
+            boolean prevOnlineDeleted = false;
             if (!prevOnlineArchiveId.equals(NOT_FOUND) && useTapeStorage) {
                 // It may happen that useTapeStorage was switched off and on again (this is not intended), this ensures
                 // at least one version of an archive still exists in any case
                 if (!prevOfflineArchiveId.equals(NOT_FOUND)) {
                     deleteArchive(prevOnlineArchiveId, txId);
+                    prevOnlineDeleted = true;
                 }
             }
 
             // Commit the transaction
             commitTransaction(txId);
+            finishImport(pid);
+            if (prevOnlineDeleted) {
+                archiveIdCache.retire(prevOnlineArchiveId);
+            }
 
             // Meta-data for PID
             List<AbstractMap.SimpleImmutableEntry<String, String>> pidMetaData = new ArrayList<>();
@@ -195,12 +312,113 @@ public class CdstarService implements ArchiveManagerService, SearchService {
 
             return new ImportResult(onlineArchiveId, offlineArchiveId, pidMetaData);
 
-        } catch (IOException ex) {
-            if (txId != null) {
-                rollbackTransaction(txId);
+        } catch (Exception ex) {
+            // The transaction stays open so that a retry can resume. See abortImport
+            saveCheckpoint(checkpoint);
+            throw ex;
+        }
+    }
+
+    @Override
+    public void abortImport(String pid) throws IOException {
+        ImportCheckpoint checkpoint = checkpoints.remove(pid);
+        if (checkpoint == null) {
+            checkpoint = importCheckpointRepository.findById(pid).orElse(null);
+        }
+        if (checkpoint == null) {
+            return;
+        }
+        try {
+            if (isTransactionOpen(checkpoint.getTxId())) {
+                rollbackTransaction(checkpoint.getTxId());
+            }
+        } finally {
+            importCheckpointRepository.deleteById(pid);
+        }
+    }
+
+    /**
+     * Start the transaction and create the archives for an import. If a previous try of the import left an open
+     * transaction, it is resumed with the files uploaded so far.
+     *
+     * @param pid
+     * @return the checkpoint for the import
+     * @throws IOException
+     */
+    private ImportCheckpoint beginOrResumeImport(String pid) throws IOException {
+        ImportCheckpoint checkpoint = checkpoints.get(pid);
+        if (checkpoint == null) {
+            checkpoint = importCheckpointRepository.findById(pid).orElse(null);
+        }
+        if (checkpoint != null) {
+            if (isTransactionOpen(checkpoint.getTxId())) {
+                Utils.logInfo(String.format(
+                    "Resuming import of '%s' in transaction '%s', %d files already uploaded", pid,
+                    checkpoint.getTxId(), checkpoint.getUploadedCount()
+                ));
+                checkpoints.put(pid, checkpoint);
+                return checkpoint;
             }
+            // The transaction expired, nothing of it is stored
+            finishImport(pid);
+        }
 
-            throw ex;
+        String txId = getTransactionId();
+        try {
+            String onlineArchiveId = createArchive(txId, false);
+            String offlineArchiveId = "";
+            if (useTapeStorage) {
+                offlineArchiveId = createArchive(txId, true);
+            }
+            checkpoint = new ImportCheckpoint(pid, txId, onlineArchiveId, offlineArchiveId);
+        } catch (Exception e) {
+            rollbackTransaction(txId);
+            throw e;
+        }
+        checkpoints.put(pid, checkpoint);
+        saveCheckpoint(checkpoint);
+        return checkpoint;
+    }
+
+    /**
+     * Store the checkpoint of an import in the database, so that it can be resumed after a restart
+     */
+    private void saveCheckpoint(ImportCheckpoint checkpoint) {
+        if (checkpoint == null) {
+            return;
+        }
+        try {
+            synchronized (checkpoint) {
+                checkpoint.setUpdatedAt(Instant.now());
+                importCheckpointRepository.save(checkpoint);
+            }
+        } catch (RuntimeException e) {
+            // The in-memory checkpoint is still available for retries
+            Utils.logWarn("Cannot save import checkpoint for " + checkpoint.getPid(), e);
+        }
+    }
+
+    /**
+     * Remove the checkpoint of an import which is committed or cannot be resumed
+     */
+    private void finishImport(String pid) {
+        checkpoints.remove(pid);
+        try {
+            importCheckpointRepository.deleteById(pid);
+        } catch (RuntimeException e) {
+            Utils.logWarn("Cannot delete import checkpoint for " + pid, e);
+        }
+    }
+
+    private boolean isTransactionOpen(String txId) throws IOException {
+        Request request = new Request.Builder()
+                .url(url + "_tx/" + txId)
+                .addHeader("Authorization", Credentials.basic(username, password))
+                .get()
+                .build();
+
+        try (Response response = cdstarClient.upload().newCall(request).execute()) {
+            return response.isSuccessful();
         }
     }
 
@@ -208,7 +426,7 @@ public class CdstarService implements ArchiveManagerService, SearchService {
 
         String transactionUrl = url + "_tx/";
 
-        OkHttpClient client = new OkHttpClient();
+        OkHttpClient client = cdstarClient.upload();
 
         RequestBody txBody = new MultipartBody.Builder()
                 .setType(MultipartBody.FORM)
@@ -241,13 +459,23 @@ public class CdstarService implements ArchiveManagerService, SearchService {
     /**
      * Upload data to Cdstar
      *
+     * The files are uploaded concurrently within the transaction, see {@linkplain UploadExecutor}. Files which are
+     * uploaded already according to the checkpoint are skipped. Every file is retried on its own if sending it fails.
+     *
+     * If the bulk import is enabled (see {@linkplain CdstarBulkImport}), all files are sent with one request per archive
+     * instead. If the vault does not support that, the files are uploaded one by one.
+     *
      * @param extractedDir
-     * @param txId
-     * @param onlineArchiveId
-     * @param offlineArchiveId - Must not be null, but can be an empty String in case of no tape(offline) storage.
+     * @param checkpoint - transaction, archives and uploaded files of this import. The offline archive-id can be an
+     *                   empty String in case of no tape(offline) storage.
+     * @param gate - conditions for committing the import, can be null. If it fails, the remaining files are not
+     *             uploaded anymore
      * @throws IOException
      */
-    private void uploadData(Path extractedDir, String txId, String onlineArchiveId, String offlineArchiveId) throws IOException {
+    private void uploadData(Path extractedDir, ImportCheckpoint checkpoint, ImportGate gate) throws IOException {
+        String txId = checkpoint.getTxId();
+        String onlineArchiveId = checkpoint.getOnlineArchiveId();
+        String offlineArchiveId = checkpoint.getOfflineArchiveId();
 
         String onlineBaseUrl = url + vault + "/" + onlineArchiveId;
         String offlineBaseUrl = url + vault + "/" + offlineArchiveId;
@@ -255,51 +483,284 @@ public class CdstarService implements ArchiveManagerService, SearchService {
         List<String> offlineTypes = Arrays.asList(offlineMimeTypes.split(";"));
         Tika tika = new Tika();
 
-        Files.walk(extractedDir)
-                .filter(Files::isRegularFile)
-                .forEach(path -> {
-                    String onlineUrl = onlineBaseUrl + "/" +
-                            URLEncoder.encode(extractedDir.relativize(path).toString(), StandardCharsets.UTF_8);
-                    String offlineUrl = offlineBaseUrl + "/" +
-                            URLEncoder.encode(extractedDir.relativize(path).toString(), StandardCharsets.UTF_8);
-
-                    String mimeType;
-                    try {
-
-                        // Try to figure out the correct MIME type
-                        mimeType = tika.detect(path);
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(extractedDir)) {
+            files = paths.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+
+        // Checksums from the manifests to verify the files while reading them for the upload
+        Map<String, String> checksums = new HashMap<>();
+        if (readOnce) {
+            checksums.putAll(ChecksumUtils.readManifest(extractedDir.resolve(Constants.PAYLOAD_MANIFEST_NAME)));
+            checksums.putAll(ChecksumUtils.readManifest(extractedDir.resolve(Constants.TAG_MANIFEST_NAME)));
+        }
 
-                    // If the MIME type is unrecognizable
-                    if (mimeType == null || mimeType.isEmpty()) {
-                        mimeType = "application/octet-stream";
+        if (checkpoint.getUploadedCount() == 0 && cdstarBulkImport.isEnabled(files.size())
+                && bulkUpload(extractedDir, files, checksums, checkpoint, offlineTypes, tika)) {
+            return;
+        }
+
+        List<UploadExecutor.UploadTask> tasks = new ArrayList<>(files.size());
+        for (Path path : files) {
+            String relativePath = extractedDir.relativize(path).toString();
+            if (checkpoint.isUploaded(relativePath)) {
+                continue;
+            }
+            tasks.add(() -> {
+                if (gate != null) {
+                    gate.checkNotFailed();
+                }
+                String onlineUrl = onlineBaseUrl + "/" + URLEncoder.encode(relativePath, StandardCharsets.UTF_8);
+                String offlineUrl = offlineBaseUrl + "/" + URLEncoder.encode(relativePath, StandardCharsets.UTF_8);
+
+                // Try to figure out the correct MIME type
+                String mimeType = tika.detect(path);
+
+                // If the MIME type is unrecognizable
+                if (mimeType == null || mimeType.isEmpty()) {
+                    mimeType = "application/octet-stream";
+                }
+
+                List<String> targetUrls = new ArrayList<>(2);
+                // Offline file?
+                if (offlineTypes.contains(mimeType)) {
+                    // useTapestorage(=true) and non empty offlineTypes is not allowed
+                    // Only send to offline archive
+                    targetUrls.add(offlineUrl);
+                } else {
+                    // For other files, send to both archives
+                    if (useTapeStorage) {
+                        targetUrls.add(offlineUrl);
                     }
+                    targetUrls.add(onlineUrl);
+                }
 
-                    File file = path.toFile();
-
-                    try {
-                        // Offline file?
-                        if (offlineTypes.contains(mimeType)) {
-                            // useTapestorage(=true) and non empty offlineTypes is not allowed
-                            // Only send to offline archive
-                            sendRequest(offlineUrl, txId, file, mimeType, true);
-                        } else {
-                            // For other files, send to both archives
-                            if (useTapeStorage) {
-                                sendRequest(offlineUrl, txId, file, mimeType, true);
-                            }
-                            sendRequest(onlineUrl, txId, file, mimeType, false);
+                String finalMimeType = mimeType;
+                withFileRetries(() -> {
+                    if (readOnce) {
+                        sendRequest(targetUrls, txId, path, finalMimeType, checksums.get(relativePath));
+                    } else {
+                        for (String targetUrl : targetUrls) {
+                            sendRequest(targetUrl, txId, path.toFile(), finalMimeType, !targetUrl.equals(onlineUrl));
                         }
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
                     }
                 });
+
+                if (checkpoint.markUploaded(relativePath) % Math.max(1, checkpointInterval) == 0) {
+                    saveCheckpoint(checkpoint);
+                }
+            });
+        }
+        uploadExecutor.runAll(tasks);
+    }
+
+    /**
+     * Upload all files of an import with one bulk import request per archive. The requests to the archives are sent at
+     * the same time.
+     *
+     * @return false if the vault does not support the bulk import
+     * @throws IOException
+     */
+    private boolean bulkUpload(
+        Path extractedDir, List<Path> files, Map<String, String> checksums, ImportCheckpoint checkpoint,
+        List<String> offlineTypes, Tika tika
+    ) throws IOException {
+        // Files with an offline MIME type are only sent to the offline archive
+        List<Path> onlineFiles = files;
+        if (StringUtils.isNotBlank(offlineMimeTypes)) {
+            onlineFiles = new ArrayList<>(files.size());
+            for (Path path : files) {
+                if (!offlineTypes.contains(tika.detect(path))) {
+                    onlineFiles.add(path);
+                }
+            }
+        }
+
+        Map<String, List<Path>> archives = new HashMap<>();
+        archives.put(checkpoint.getOnlineArchiveId(), onlineFiles);
+        if (useTapeStorage) {
+            archives.put(checkpoint.getOfflineArchiveId(), files);
+        }
+
+        AtomicBoolean unsupported = new AtomicBoolean();
+        List<UploadExecutor.UploadTask> tasks = new ArrayList<>(archives.size());
+        for (Map.Entry<String, List<Path>> archive : archives.entrySet()) {
+            tasks.add(() -> withFileRetries(() -> {
+                if (!cdstarBulkImport.importFiles(
+                    checkpoint.getTxId(), archive.getKey(), extractedDir, archive.getValue(), checksums
+                )) {
+                    unsupported.set(true);
+                }
+            }));
+        }
+        uploadExecutor.runAll(tasks);
+        if (unsupported.get()) {
+            return false;
+        }
+
+        for (Path path : files) {
+            checkpoint.markUploaded(extractedDir.relativize(path).toString());
+        }
+        saveCheckpoint(checkpoint);
+        return true;
+    }
+
+    /**
+     * Run the upload of a file and retry it with backoff on connection errors and server errors of CDSTAR
+     */
+    private void withFileRetries(UploadExecutor.UploadTask upload) throws IOException {
+        try {
+            Failsafe.with(fileRetryPolicy).run(upload::run);
+        } catch (FailsafeException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Upload one file to one or more archives and read it from the disk only once.
+     *
+     * Files up to `cdstar.upload.memoryBufferSize` bytes are read into memory, larger files are memory mapped. The
+     * sha512-checksum is calculated from the read data and compared to the one from the bag's manifest before anything
+     * is sent. The requests to the archives are sent at the same time.
+     *
+     * @param urls             - The URLs to upload the file to
+     * @param txId             - The transaction-id
+     * @param path             - The file to upload
+     * @param mimeType         - MIME type of the file
+     * @param expectedChecksum - sha512 of the file from the manifest. Can be null if the file is not in a manifest
+     * @throws IOException
+     */
+    private void sendRequest(List<String> urls, String txId, Path path, String mimeType, String expectedChecksum)
+            throws IOException {
+        MediaType mediaType = MediaType.parse(mimeType);
+        long size = Files.size(path);
+        if (size > Integer.MAX_VALUE) {
+            // Too large to be mapped at once, read it for every archive
+            for (String fileUrl : urls) {
+                sendRequest(fileUrl, txId, path.toFile(), mimeType, false);
+            }
+            return;
+        }
+
+        MessageDigest md = ChecksumUtils.newSha512();
+        RequestBody body;
+        if (size <= memoryBufferSize) {
+            byte[] content = Files.readAllBytes(path);
+            md.update(content);
+            body = RequestBody.create(mediaType, content);
+        } else {
+            MappedByteBuffer mapped;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            md.update(mapped.duplicate());
+            body = new RequestBody() {
+                @Override
+                public MediaType contentType() {
+                    return mediaType;
+                }
+
+                @Override
+                public long contentLength() {
+                    return size;
+                }
+
+                @Override
+                public void writeTo(BufferedSink sink) throws IOException {
+                    ByteBuffer buffer = mapped.duplicate();
+                    while (buffer.hasRemaining()) {
+                        sink.write(buffer);
+                    }
+                }
+            };
+        }
+
+        if (expectedChecksum != null && !expectedChecksum.equals(ChecksumUtils.toHex(md.digest()))) {
+            throw new BagitChecksumException(
+                Collections.singletonList("Checksum of file '" + path + "' does not match the manifest anymore")
+            );
+        }
+
+        List<Request> requests = new ArrayList<>(urls.size());
+        for (String fileUrl : urls) {
+            requests.add(new Request.Builder()
+                    .url(fileUrl)
+                    .addHeader("Authorization", Credentials.basic(username, password))
+                    .addHeader("Content-Type", mimeType)
+                    .addHeader("X-Transaction", txId)
+                    .put(body)
+                    .build());
+        }
+        executeUploads(requests);
+    }
+
+    /**
+     * Execute upload-requests at the same time. The first request is executed on the current thread, the others with
+     * the dispatcher of the client. Returns after all requests are finished.
+     *
+     * @param requests
+     * @throws IOException
+     */
+    private void executeUploads(List<Request> requests) throws IOException {
+        OkHttpClient client = cdstarClient.upload();
+
+        List<CompletableFuture<Response>> pending = new ArrayList<>();
+        for (Request request : requests.subList(1, requests.size())) {
+            CompletableFuture<Response> future = new CompletableFuture<>();
+            client.newCall(request).enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    future.completeExceptionally(e);
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    future.complete(response);
+                }
+            });
+            pending.add(future);
+        }
+
+        Exception error = null;
+        try (Response response = client.newCall(requests.get(0)).execute()) {
+            checkUploadResponse(response);
+        } catch (IOException | RuntimeException e) {
+            error = e;
+        }
+
+        for (CompletableFuture<Response> future : pending) {
+            try (Response response = future.get()) {
+                checkUploadResponse(response);
+            } catch (ExecutionException e) {
+                error = error != null ? error : (Exception) e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error = error != null ? error : new InterruptedIOException("Interrupted while uploading");
+            } catch (RuntimeException e) {
+                error = error != null ? error : e;
+            }
+        }
+
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        } else if (error != null) {
+            throw (RuntimeException) error;
+        }
+    }
+
+    private void checkUploadResponse(Response response) {
+        if (!response.isSuccessful()) {
+            // Something is wrong, throw the exception
+            throw new HttpServerErrorException(HttpStatus.valueOf(response.code()),
+                    "Cannot send data to CDSTAR. URL: " + response.request().url());
+        }
     }
 
     private void sendRequest(String url, String txId, File file, String mimeType, boolean isOffline) throws IOException {
-        OkHttpClient client = new OkHttpClient();
+        OkHttpClient client = cdstarClient.upload();
 
         // Request to upload a file
         Request request = new Request.Builder()
@@ -348,11 +809,7 @@ public class CdstarService implements ArchiveManagerService, SearchService {
 
         String txUrl = url + "_tx/" + txId;
 
-        OkHttpClient client = new OkHttpClient.Builder()
-                .connectTimeout(10, TimeUnit.MINUTES)
-                .readTimeout(10, TimeUnit.MINUTES)
-                .writeTimeout(10, TimeUnit.MINUTES)
-                .build();
+        OkHttpClient client = cdstarClient.commit();
 
         Request request = new Request.Builder()
                 .url(txUrl)
@@ -372,7 +829,7 @@ public class CdstarService implements ArchiveManagerService, SearchService {
 
         String txUrl = url + "_tx/" + txId;
 
-        OkHttpClient client = new OkHttpClient();
+        OkHttpClient client = cdstarClient.upload();
 
         Request request = new Request.Builder()
                 .url(txUrl)
@@ -396,7 +853,7 @@ public class CdstarService implements ArchiveManagerService, SearchService {
             profile = offlineProfile;
         }
 
-        OkHttpClient client = new OkHttpClient();
+        OkHttpClient client = cdstarClient.upload();
 
         RequestBody requestBody = new MultipartBody.Builder()
                 .setType(MultipartBody.FORM)
@@ -441,7 +898,7 @@ public class CdstarService implements ArchiveManagerService, SearchService {
     private void setArchiveMetaData(String archiveId, List<AbstractMap.SimpleImmutableEntry<String, String>> metaData,
                                     String pid, String txId) throws IOException {
         String fullUrl = url + vault + "/" + archiveId;
-        OkHttpClient client = new OkHttpClient();
+        OkHttpClient client = cdstarClient.upload();
 
         MultipartBody.Builder builder = new MultipartBody.Builder()
                 .setType(MultipartBody.FORM);
@@ -532,7 +989,7 @@ public class CdstarService implements ArchiveManagerService, SearchService {
         }
         String fullUrl = url + vault + "/" + archiveId;
 
-        OkHttpClient client = new OkHttpClient();
+        OkHttpClient client = cdstarClient.upload();
         Request.Builder builder = new Request.Builder()
                 .url(fullUrl)
                 .addHeader("Authorization", Credentials.basic(username, password))
@@ -551,12 +1008,18 @@ public class CdstarService implements ArchiveManagerService, SearchService {
                 throw new HttpServerErrorException(HttpStatus.valueOf(response.code()), "Cannot delete archive");
             }
         }
+
+        // Inside a transaction the archive is only gone after the commit, the caller has to take care of it
+        if (txId == null) {
+            archiveIdCache.retire(archiveId);
+        }
     }
 
     @Override
     public Response export(String identifier, String type, boolean isInternal) throws IOException {
 
         String archiveId;
+        String state = null;
 
         // If it's an internal ID, just take it
         if (isInternal) {
@@ -564,12 +1027,15 @@ public class CdstarService implements ArchiveManagerService, SearchService {
         } else {
             // Otherwise get the internal ID from the public ID
             // Quick export?
+            ArchiveHit archive;
             if (type.equals("quick")) {
-                archiveId = getArchiveIdFromIdentifier(identifier, onlineProfile);
+                archive = findArchive(identifier, onlineProfile);
             } else {
                 // Full export
-                archiveId = getArchiveIdFromIdentifier(identifier, mirrorProfile);
+                archive = findArchive(identifier, mirrorProfile);
             }
+            archiveId = archive != null ? archive.id : NOT_FOUND;
+            state = archive != null ? archive.state : null;
         }
 
         // Archive not found
@@ -577,8 +1043,9 @@ public class CdstarService implements ArchiveManagerService, SearchService {
             throw new HttpClientErrorException(HttpStatus.NOT_FOUND, ErrMsg.ARCHIVE_NOT_FOUND);
         }
 
-        // The archive can't be exported because it is still on tape
-        if (!isArchiveOpen(archiveId)) {
+        // The archive can't be exported because it is still on tape. The state is known if the archive was searched
+        boolean open = state != null ? isOpenState(state) : isArchiveOpen(archiveId);
+        if (!open) {
             throw new HttpClientErrorException(HttpStatus.CONFLICT, "The archive is still on tape. Please make a full export request first.");
         }
 
@@ -599,52 +1066,47 @@ public class CdstarService implements ArchiveManagerService, SearchService {
         // Set the base URL up to the archive level
         String baseUrl = url + vault + "/" + archiveId;
 
-        OkHttpClient client = new OkHttpClient();
+        OkHttpClient client = cdstarClient.file();
 
-        // Build the GET request
-        Request.Builder requestBuilder = new Request.Builder()
-                .addHeader("Authorization", Credentials.basic(username, password))
-                .get();
+        String credentials = Credentials.basic(username, password);
 
         // Open the stream for zip file
         try (ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream)) {
 
-            // For each requested file
-            for (String path : paths) {
-
-                // Build the complete URL
-                String fullUrl = baseUrl + "/" + path;
-
-                // Build the request with the complete URL
-                Request request = requestBuilder.url(fullUrl).build();
+            // The next files are fetched while the current one is written to the zip
+            downloadPrefetcher.fetchInOrder(Arrays.asList(paths), (path, buffer) -> {
+                // Build the GET request with the complete URL. Runs concurrently, so a builder per request
+                Request request = new Request.Builder()
+                        .url(baseUrl + "/" + path)
+                        .addHeader("Authorization", credentials)
+                        .get()
+                        .build();
 
                 // Execute the request
                 try (Response response = client.newCall(request).execute()) {
                     if (response.isSuccessful() && response.body() != null) {
-
-                        // Stream the response
                         try (InputStream inputStream = response.body().byteStream()) {
-
-                            // Add new entry to the zip. Use full path as entry name so that the sub-directory can be created
-                            ZipEntry zipEntry = new ZipEntry(path);
-                            zipOutputStream.putNextEntry(zipEntry);
-
-                            // Write the response to the zip stream
-                            byte[] bytes = new byte[1024];
-                            int length;
-                            while ((length = inputStream.read(bytes)) != -1) {
-                                zipOutputStream.write(bytes, 0, length);
-                            }
-                        } catch (IOException ex) {
-                            // Catch the exception here so that if something's wrong with 1 file, the whole process still runs
-                            Utils.logWarn("Error adding file to zip", ex);
+                            buffer.readFrom(inputStream);
                         }
+                        buffer.setContentType(response.header("Content-Type"));
+                        return buffer;
                     }
                 } catch (IOException ex) {
                     // Catch the exception here so that if something's wrong with 1 file, the whole process still runs
                     Utils.logWarn("Error fetching file from Cdstar", ex);
                 }
-            }
+                return null;
+            }, (path, buffer) -> {
+                // Add new entry to the zip. Use full path as entry name so that the sub-directory can be created.
+                // Images which are compressed already are stored, other files deflated
+                zipCompressionPolicy.putNextEntry(
+                    zipOutputStream, path, buffer.getContentType(), buffer.getSize(), buffer.getCrc()
+                );
+
+                // Write the fetched file to the zip stream
+                buffer.writeTo(zipOutputStream);
+                zipOutputStream.closeEntry();
+            });
         }
     }
 
@@ -657,6 +1119,7 @@ public class CdstarService implements ArchiveManagerService, SearchService {
         // Change the profile of the archive to a mirror profile
         if (!archiveId.equals(NOT_FOUND)) {
             updateProfile(archiveId, mirrorProfile);
+            archiveIdCache.invalidatePid(identifier);
         } else {
             throw new HttpClientErrorException(HttpStatus.NOT_FOUND, ErrMsg.ARCHIVE_NOT_FOUND);
         }
@@ -671,6 +1134,7 @@ public class CdstarService implements ArchiveManagerService, SearchService {
         // Change the profile of the archive to a cold profile
         if (!archiveId.equals(NOT_FOUND)) {
             updateProfile(archiveId, offlineProfile);
+            archiveIdCache.invalidatePid(identifier);
         } else {
             throw new HttpClientErrorException(HttpStatus.NOT_FOUND, ErrMsg.ARCHIVE_NOT_FOUND);
         }
@@ -678,7 +1142,7 @@ public class CdstarService implements ArchiveManagerService, SearchService {
 
     private void updateProfile(String archiveId, String newProfile) throws IOException {
         String fullUrl = url + vault + "/" + archiveId;
-        OkHttpClient client = new OkHttpClient();
+        OkHttpClient client = cdstarClient.upload();
 
         RequestBody requestBody = new MultipartBody.Builder()
                 .setType(MultipartBody.FORM)
@@ -701,6 +1165,113 @@ public class CdstarService implements ArchiveManagerService, SearchService {
     }
 
     private String getArchiveIdFromIdentifier(String pid, String profile) throws IOException {
+        return mapPidToArchiveId(pid, profile);
+    }
+
+    /**
+     * Find the archive of a PID with the highest priority profile.
+     *
+     * The archive-ID is taken from the cache if possible. Otherwise the archives of all profiles are searched with a
+     * single query and the first profile of the provided ones which has an archive wins. The state of the archive is
+     * only available if it was searched.
+     *
+     * @param pid
+     * @param profiles - profiles in order of priority
+     * @return the archive or null if there is no archive with one of the profiles
+     * @throws IOException
+     */
+    private ArchiveHit findArchive(String pid, String... profiles) throws IOException {
+        String cachedId = archiveIdCache.get(pid, profiles);
+        if (cachedId != null) {
+            return new ArchiveHit(cachedId, null, null);
+        }
+
+        ArchiveHit winner = null;
+        Map<String, ArchiveHit> hits = searchArchives(pid, profiles);
+        if (hits != null) {
+            for (String profile : profiles) {
+                if (hits.containsKey(profile)) {
+                    winner = hits.get(profile);
+                    break;
+                }
+            }
+        } else {
+            // The search result does not contain the profiles, fall back to one search per profile
+            for (String profile : profiles) {
+                String archiveId = searchArchiveIdFromIdentifier(pid, profile);
+                if (!archiveId.equals(NOT_FOUND)) {
+                    winner = new ArchiveHit(archiveId, profile, null);
+                    break;
+                }
+            }
+        }
+
+        if (winner != null) {
+            archiveIdCache.put(pid, winner.id, profiles);
+        }
+        return winner;
+    }
+
+    /**
+     * Search the archives of a PID with one of the profiles in a single request.
+     *
+     * @param pid
+     * @param profiles
+     * @return profile - newest archive with this profile. Null if CDSTAR does not return the profiles of the hits
+     * @throws IOException
+     */
+    private Map<String, ArchiveHit> searchArchives(String pid, String... profiles) throws IOException {
+        String fullUrl = url + vault;
+
+        String query = String.format("dcIdentifier:\"%s\" AND profile:(%s)", pid, String.join(" OR ", profiles));
+
+        HttpUrl httpUrl = HttpUrl.parse(fullUrl).newBuilder()
+                .addQueryParameter("q", query)
+                .addQueryParameter("order", "-modified")
+                .addQueryParameter("fields", "profile,state")
+                .addQueryParameter("limit", "100")
+                .build();
+
+        Request request = new Request.Builder()
+                .url(httpUrl)
+                .addHeader("Authorization", Credentials.basic(username, password))
+                .get()
+                .build();
+
+        try (Response response = cdstarClient.search().newCall(request).execute()) {
+            if (response.isSuccessful() && response.body() != null) {
+                ObjectMapper mapper = new ObjectMapper();
+                JsonNode hits = mapper.readTree(response.body().string()).get("hits");
+
+                Map<String, ArchiveHit> res = new HashMap<>();
+                for (JsonNode hit : hits) {
+                    // The values requested with `fields` are returned in the fields of the hit
+                    JsonNode fields = hit.path("fields");
+                    String profile = textOrNull(fields, "profile");
+                    if (profile == null) {
+                        if (profiles.length != 1) {
+                            return null;
+                        }
+                        // Only one profile was searched, so every hit has it
+                        profile = profiles[0];
+                    }
+                    // Hits are ordered by modification date, keep the newest
+                    res.putIfAbsent(profile, new ArchiveHit(hit.get("id").asText(), profile, textOrNull(fields, "state")));
+                }
+                return res;
+            }
+
+            // Cannot get the archive ID? Throw the exception
+            throw new HttpServerErrorException(HttpStatus.valueOf(response.code()), "Error when getting the archive with the identifier " + pid);
+        }
+    }
+
+    private static String textOrNull(JsonNode node, String field) {
+        JsonNode value = node.get(field);
+        return value == null || value.isNull() ? null : value.asText();
+    }
+
+    private String searchArchiveIdFromIdentifier(String pid, String profile) throws IOException {
         String fullUrl = url + vault;
 
         // Search for archive with specified identifier (PPN, PID)
@@ -718,7 +1289,7 @@ public class CdstarService implements ArchiveManagerService, SearchService {
                 .get()
                 .build();
 
-        try (Response response = new OkHttpClient().newCall(request).execute()) {
+        try (Response response = cdstarClient.search().newCall(request).execute()) {
 
             if (response.isSuccessful()) {
                 if (response.body() != null) {
@@ -759,7 +1330,7 @@ public class CdstarService implements ArchiveManagerService, SearchService {
                 .get()
                 .build();
 
-        OkHttpClient client = new OkHttpClient();
+        OkHttpClient client = cdstarClient.file();
         Response response = client.newCall(request).execute();
 
         if (response.isSuccessful()) {
@@ -770,10 +1341,14 @@ public class CdstarService implements ArchiveManagerService, SearchService {
         throw new HttpServerErrorException(HttpStatus.valueOf(response.code()), "Cannot export the archive " + archiveId);
     }
 
+    private static boolean isOpenState(String state) {
+        return state.equals("open") || state.equals("locked");
+    }
+
     private boolean isArchiveOpen(String archiveId) throws IOException {
         String fullUrl = url + vault + "/" + archiveId;
 
-        OkHttpClient client = new OkHttpClient();
+        OkHttpClient client = cdstarClient.search();
 
         Request request = new Request.Builder()
                 .url(fullUrl)
@@ -792,7 +1367,7 @@ public class CdstarService implements ArchiveManagerService, SearchService {
                     String state = root.get("state").asText();
 
                     // Open-state archive
-                    return state.equals("open") || state.equals("locked");
+                    return isOpenState(state);
 
                 }
             }
@@ -816,7 +1391,7 @@ public class CdstarService implements ArchiveManagerService, SearchService {
                 .addQueryParameter("scroll", searchRequest.getScroll())
                 .build();
 
-        OkHttpClient client = new OkHttpClient();
+        OkHttpClient client = cdstarClient.search();
 
         Request request = new Request.Builder()
                 .url(httpUrl)
@@ -864,7 +1439,7 @@ public class CdstarService implements ArchiveManagerService, SearchService {
             fullUrl += "&offset=" + offset;
         }
 
-        OkHttpClient client = new OkHttpClient();
+        OkHttpClient client = cdstarClient.search();
 
         Request request = new Request.Builder()
                 .url(fullUrl)
@@ -890,6 +1465,69 @@ public class CdstarService implements ArchiveManagerService, SearchService {
 
     @Override
     public HttpFile getFile(String id, String path, boolean infoOnly, boolean internalId) throws IOException {
+        try (Response response = requestFile(id, path, infoOnly, internalId, null)) {
+            HttpFile httpFile = new HttpFile(response.body().bytes());
+
+            Headers headers = response.headers();
+            httpFile.addHeaders("Content-Type", headers.get("Content-Type"));
+            httpFile.addHeaders("Content-Length", headers.get("Content-Length"));
+
+            return httpFile;
+        }
+    }
+
+    @Override
+    public HttpFileStream getFileStream(String id, String path, boolean internalId, HttpHeaders requestHeaders)
+            throws IOException {
+        Response response = requestFile(id, path, false, internalId, requestHeaders);
+
+        HttpFileStream httpFile = new HttpFileStream(response.code(), response.body().byteStream(), response);
+        Headers headers = response.headers();
+        for (String name : RANGE_RESPONSE_HEADERS) {
+            if (headers.get(name) != null) {
+                httpFile.addHeaders(name, headers.get(name));
+            }
+        }
+        return httpFile;
+    }
+
+    /**
+     * Add the headers for range requests of the client to the request to CDSTAR
+     */
+    private static void addRangeHeaders(Request.Builder builder, HttpHeaders requestHeaders) {
+        if (requestHeaders == null) {
+            return;
+        }
+        for (String name : RANGE_REQUEST_HEADERS) {
+            String value = requestHeaders.getFirst(name);
+            if (value != null) {
+                builder.addHeader(name, value);
+            }
+        }
+    }
+
+    /**
+     * Exception for a range request which cannot be served. Contains the Content-Range header from CDSTAR with the
+     * length of the file
+     */
+    private static HttpClientErrorException rangeNotSatisfiable(Response response) {
+        HttpHeaders headers = new HttpHeaders();
+        if (response.header(HttpHeaders.CONTENT_RANGE) != null) {
+            headers.add(HttpHeaders.CONTENT_RANGE, response.header(HttpHeaders.CONTENT_RANGE));
+        }
+        return HttpClientErrorException.create(
+            HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, "Requested range not satisfiable", headers, null, null
+        );
+    }
+
+    /**
+     * Request a file from CDSTAR.
+     *
+     * @return the successful response with a body. It has to be closed by the caller
+     * @throws IOException
+     */
+    private Response requestFile(String id, String path, boolean infoOnly, boolean internalId,
+            HttpHeaders requestHeaders) throws IOException {
         if (!internalId) {
             id = this.mapPidToArchiveId(id, mirrorProfile, onlineProfile);
         }
@@ -900,26 +1538,23 @@ public class CdstarService implements ArchiveManagerService, SearchService {
             fullUrl += "?info";
         }
 
-        OkHttpClient client = new OkHttpClient();
+        OkHttpClient client = cdstarClient.file();
 
-        Request request = new Request.Builder()
+        Request.Builder builder = new Request.Builder()
                 .url(fullUrl)
                 .addHeader("Authorization", Credentials.basic(username, password))
-                .get()
-                .build();
-
-        try (Response response = client.newCall(request).execute()) {
-            if (response.isSuccessful()) {
-                if (response.body() != null) {
-
-                    HttpFile httpFile = new HttpFile(response.body().bytes());
+                .get();
+        addRangeHeaders(builder, requestHeaders);
+        Request request = builder.build();
 
-                    Headers headers = response.headers();
-                    httpFile.addHeaders("Content-Type", headers.get("Content-Type"));
-                    httpFile.addHeaders("Content-Length", headers.get("Content-Length"));
+        Response response = client.newCall(request).execute();
+        if (response.isSuccessful() && response.body() != null) {
+            return response;
+        }
 
-                    return httpFile;
-                }
+        try (response) {
+            if (response.code() == HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value()) {
+                throw rangeNotSatisfiable(response);
             }
 
             if (response.code() == HttpStatus.NOT_FOUND.value()) {
@@ -950,7 +1585,7 @@ public class CdstarService implements ArchiveManagerService, SearchService {
                 .get()
                 .build();
 
-        try (Response response = new OkHttpClient().newCall(request).execute()) {
+        try (Response response = cdstarClient.file().newCall(request).execute()) {
             if (response.isSuccessful() && response.body() != null) {
                 String body = response.body().string();
                 return Utils.readBagInfoToMap(body);
@@ -968,6 +1603,11 @@ public class CdstarService implements ArchiveManagerService, SearchService {
 
     @Override
     public Response exportFile(String pid, String path) throws IOException{
+        return exportFile(pid, path, null);
+    }
+
+    @Override
+    public Response exportFile(String pid, String path, HttpHeaders requestHeaders) throws IOException {
         String archiveId = this.mapPidToArchiveId(pid, onlineProfile, mirrorProfile);
         if (archiveId.equals(NOT_FOUND)) {
             throw new HttpClientErrorException(HttpStatus.NOT_FOUND, ErrMsg.ARCHIVE_NOT_FOUND);
@@ -975,16 +1615,21 @@ public class CdstarService implements ArchiveManagerService, SearchService {
 
         String fullUrl = url + vault + "/" + archiveId + "/" + path;
         HttpUrl httpUrl = HttpUrl.parse(fullUrl).newBuilder().build();
-        Request request = new Request.Builder()
+        Request.Builder builder = new Request.Builder()
                 .url(httpUrl)
                 .addHeader("Authorization", Credentials.basic(username, password))
-                .get()
-                .build();
+                .get();
+        addRangeHeaders(builder, requestHeaders);
+        Request request = builder.build();
 
-        Response response = new OkHttpClient().newCall(request).execute();
+        Response response = cdstarClient.file().newCall(request).execute();
 
         if (response.isSuccessful()) {
             return response;
+        }
+        response.close();
+        if (response.code() == HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value()) {
+            throw rangeNotSatisfiable(response);
         } else if (Integer.valueOf(response.code()).equals(404)) {
             throw new HttpClientErrorException(HttpStatus.NOT_FOUND, ErrMsg.FILE_NOT_FOUND);
         } else {
@@ -1009,7 +1654,7 @@ public class CdstarService implements ArchiveManagerService, SearchService {
      * example: `mapArchiveIdToPid("xyz", "default", "cold")`. This call would at first try to find
      * an archive with the "xyz" as identifier and with the profile "default". If found the
      * cdstar-id is returned. If not found it searches for an archive with the "xyz" identifier and
-     * the profile "cold"
+     * the profile "cold". All profiles are searched with one request, see {@link #findArchive}
      *
      * @param pid
      * @param profiles - profiles to search in order
@@ -1017,13 +1662,21 @@ public class CdstarService implements ArchiveManagerService, SearchService {
      * @throws IOException
      */
     private String mapPidToArchiveId(String pid, String...profiles) throws IOException {
-        for (String profile: profiles ) {
-            String cdstarId = this.getArchiveIdFromIdentifier(pid, profile);
-            if (cdstarId != null && cdstarId != NOT_FOUND) {
-                return cdstarId;
-            }
+        ArchiveHit archive = findArchive(pid, profiles);
+        return archive != null ? archive.id : NOT_FOUND;
+    }
+
+    /** An archive found for a PID. Profile and state are null if they are not known */
+    private static class ArchiveHit {
+        private final String id;
+        private final String profile;
+        private final String state;
+
+        private ArchiveHit(String id, String profile, String state) {
+            this.id = id;
+            this.profile = profile;
+            this.state = state;
         }
-        return NOT_FOUND;
     }
 
     @Override
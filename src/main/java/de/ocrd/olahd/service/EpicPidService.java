@@ -113,7 +113,7 @@ public class EpicPidService implements PidService {
     public void appendData(String pid, List<AbstractMap.SimpleImmutableEntry<String, String>> data) throws IOException {
 
         // Execute sequentially if it tries to append to the same PID
-        synchronized (mutexFactory.getMutex(pid)) {
+        try (MutexFactory.Lock lock = mutexFactory.lock(pid)) {
 
             // Get current data of the PID
             List<AbstractMap.SimpleImmutableEntry<String, String>> pidData = getPidData(pid);
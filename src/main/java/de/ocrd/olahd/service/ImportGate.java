@@ -0,0 +1,27 @@
+package de.ocrd.olahd.service;
+
+import java.io.IOException;
+
+/**
+ * Conditions for completing an import which is started before everything is checked, e.g. while the bag is still
+ * verified. See {@linkplain ArchiveManagerService#importZipFile(java.nio.file.Path, String, java.util.List, String,
+ * ImportGate)}
+ */
+public interface ImportGate {
+
+    /**
+     * Called during the upload. Fails if it is known already that the import cannot be completed, so the remaining
+     * files are not uploaded anymore
+     *
+     * @throws IOException
+     */
+    void checkNotFailed() throws IOException;
+
+    /**
+     * Called right before the import is committed. Waits till it is known whether the import can be completed
+     *
+     * @throws IOException
+     * @throws RuntimeException if the import must not be committed, e.g. HttpClientErrorException for an invalid bag
+     */
+    void awaitCommit() throws IOException;
+}
@@ -0,0 +1,57 @@
+package de.ocrd.olahd.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * static functions for creating and reading sha512-checksums
+ */
+public class ChecksumUtils {
+
+    private ChecksumUtils() {
+    }
+
+    public static MessageDigest newSha512() {
+        try {
+            return MessageDigest.getInstance("SHA-512");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Unexpected error when creating sha512-hash");
+        }
+    }
+
+    public static String toHex(byte[] digest) {
+        return DatatypeConverter.printHexBinary(digest).toLowerCase();
+    }
+
+    /**
+     * Read a bagit manifest (e.g. manifest-sha512.txt) into a map
+     *
+     * @param manifest - path to the manifest file
+     * @return path of the file relative to the bag root - checksum. Empty if the manifest does not exist
+     * @throws IOException
+     */
+    public static Map<String, String> readManifest(Path manifest) throws IOException {
+        Map<String, String> res = new HashMap<>();
+        if (!Files.exists(manifest)) {
+            return res;
+        }
+        try (BufferedReader br = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] parts = line.trim().split("\\s+", 2);
+                if (parts.length == 2) {
+                    res.put(parts[1], parts[0].toLowerCase());
+                }
+            }
+        }
+        return res;
+    }
+}
@@ -0,0 +1,66 @@
+package de.ocrd.olahd.utils;
+
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import org.springframework.http.HttpHeaders;
+
+/**
+ * static functions for HTTP caching of archived content.
+ *
+ * The content of a file in an archive never changes: new data always gets a new PID. So the ETag of a file can be
+ * derived from PID and path, and the file can be validated without fetching it from the archive.
+ */
+public class HttpCacheUtils {
+
+    /** Cache-Control for content addressed by PID */
+    public static final String CACHE_CONTROL_IMMUTABLE = "public, max-age=31536000, immutable";
+
+    /** Cache-Control for content which may change: caches have to revalidate with the ETag */
+    public static final String CACHE_CONTROL_REVALIDATE = "no-cache";
+
+    private HttpCacheUtils() {
+    }
+
+    /**
+     * Strong ETag for content addressed by PID
+     *
+     * @param parts - what identifies the content, e.g. endpoint, PID and path
+     * @return quoted ETag
+     */
+    public static String immutableEtag(String... parts) {
+        return etag(String.join("\n", parts));
+    }
+
+    /**
+     * Strong ETag from the content itself
+     */
+    public static String etag(String content) {
+        return "\"" + Hashing.sha256().hashString(content, StandardCharsets.UTF_8).toString() + "\"";
+    }
+
+    /**
+     * Headers of a range request which can be forwarded to the archive.
+     *
+     * If-Range is checked against the ETag of the content here, because the archive uses its own ETags. Since the
+     * content never changes, a matching If-Range is dropped and the range is served. If it does not match, the range is
+     * dropped and the whole file is served.
+     *
+     * @param requestHeaders - headers of the client's request
+     * @param etag           - ETag of the requested content. Can be null if unknown
+     * @return headers to pass to the archive
+     */
+    public static HttpHeaders rangeHeaders(HttpHeaders requestHeaders, String etag) {
+        HttpHeaders res = new HttpHeaders();
+        if (requestHeaders == null) {
+            return res;
+        }
+        res.putAll(requestHeaders);
+        if (etag != null && requestHeaders.containsKey(HttpHeaders.IF_RANGE)) {
+            if (!etag.equals(requestHeaders.getFirst(HttpHeaders.IF_RANGE))) {
+                res.remove(HttpHeaders.RANGE);
+            }
+            res.remove(HttpHeaders.IF_RANGE);
+        }
+        return res;
+    }
+}
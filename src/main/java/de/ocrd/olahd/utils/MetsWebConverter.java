@@ -51,7 +51,7 @@ public class MetsWebConverter {
     static {
         try {
             URI uri1 = WebMvcLinkBuilder.linkTo(
-                WebMvcLinkBuilder.methodOn(ExportController.class).exportFile("PARAM", "PARAM")
+                WebMvcLinkBuilder.methodOn(ExportController.class).exportFile("PARAM", "PARAM", null, null)
             ).toUri();
             String path1 = uri1.isAbsolute() ? uri1.toURL().getFile() : uri1.toString();
             PREFIX_IMAGE_EXPORT = "%s/api" + path1.replaceAll("PARAM", "%s");
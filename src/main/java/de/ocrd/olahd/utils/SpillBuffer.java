@@ -0,0 +1,120 @@
+package de.ocrd.olahd.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+/**
+ * Buffer for the content of a file which is kept in memory up to a threshold and written to a temporary file if it is
+ * larger.
+ *
+ * Size and CRC-32 of the content are calculated while writing. The temporary file is deleted on close.
+ */
+public class SpillBuffer implements Closeable {
+
+    private final long memoryThreshold;
+
+    private final Path spillDir;
+
+    private final CRC32 crc = new CRC32();
+
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+
+    private Path file;
+
+    private OutputStream fileOut;
+
+    private long size;
+
+    private String contentType;
+
+    /**
+     * @param memoryThreshold - max. number of bytes held in memory
+     * @param spillDir        - directory for the temporary file
+     */
+    public SpillBuffer(long memoryThreshold, Path spillDir) {
+        this.memoryThreshold = memoryThreshold;
+        this.spillDir = spillDir;
+    }
+
+    /**
+     * Read the stream to the end and append it to the buffer. The stream is not closed
+     */
+    public void readFrom(InputStream in) throws IOException {
+        byte[] bytes = new byte[8192];
+        int length;
+        while ((length = in.read(bytes)) != -1) {
+            write(bytes, 0, length);
+        }
+    }
+
+    public void write(byte[] bytes, int off, int len) throws IOException {
+        crc.update(bytes, off, len);
+        size += len;
+        if (fileOut == null && memory.size() + len > memoryThreshold) {
+            file = Files.createTempFile(spillDir, "olahd-spill-", ".tmp");
+            fileOut = new BufferedOutputStream(Files.newOutputStream(file));
+            memory.writeTo(fileOut);
+            memory = null;
+        }
+        if (fileOut != null) {
+            fileOut.write(bytes, off, len);
+        } else {
+            memory.write(bytes, off, len);
+        }
+    }
+
+    /**
+     * Write the content of the buffer to the stream. Nothing can be appended to the buffer afterwards
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (fileOut != null) {
+            fileOut.close();
+            Files.copy(file, out);
+        } else {
+            memory.writeTo(out);
+        }
+    }
+
+    /** Number of bytes in the buffer */
+    public long getSize() {
+        return size;
+    }
+
+    /** CRC-32 of the bytes in the buffer */
+    public long getCrc() {
+        return crc.getValue();
+    }
+
+    /** MIME type of the content, null if unknown */
+    public String getContentType() {
+        return contentType;
+    }
+
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    /** True if the content did not fit into memory and was written to a temporary file */
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        memory = null;
+        if (fileOut != null) {
+            try {
+                fileOut.close();
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
@@ -4,12 +4,16 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.IntStream;
 
 import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import de.ocrd.olahd.component.InMemoryLockProvider;
 import de.ocrd.olahd.component.MutexFactory;
+import de.ocrd.olahd.exceptions.LockTimeoutException;
 
 public class MutexFactoryTests {
 
@@ -52,4 +56,46 @@ public class MutexFactoryTests {
         Assert.assertEquals(count[0], expected);
         Assert.assertEquals(count[1], expected);
     }
+
+    @Test
+    public void lockTest() {
+        MutexFactory<String> mutexFactory = new MutexFactory<>();
+        String id = UUID.randomUUID().toString();
+        final int[] count = {0};
+
+        IntStream.range(0, THREAD_COUNT * 100)
+                .parallel()
+                .forEach(i -> {
+                    try (MutexFactory.Lock lock = mutexFactory.lock(id)) {
+                        count[0]++;
+                    }
+                });
+        Assert.assertEquals(THREAD_COUNT * 100, count[0]);
+    }
+
+    @Test
+    public void lockTimeoutTest() throws Exception {
+        MutexFactory<String> mutexFactory = new MutexFactory<>(new InMemoryLockProvider(), 50);
+        String id = UUID.randomUUID().toString();
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Thread holder = new Thread(() -> {
+            try (MutexFactory.Lock lock = mutexFactory.lock(id)) {
+                locked.countDown();
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        holder.start();
+        locked.await();
+
+        assertThrows(LockTimeoutException.class, () -> mutexFactory.lock(id));
+        release.countDown();
+        holder.join();
+        try (MutexFactory.Lock lock = mutexFactory.lock(id)) {
+            Assert.assertTrue(lock.getFencingToken() > 1);
+        }
+    }
 }
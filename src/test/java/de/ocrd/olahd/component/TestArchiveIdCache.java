@@ -0,0 +1,43 @@
+package de.ocrd.olahd.component;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import de.ocrd.olahd.domain.Archive;
+import de.ocrd.olahd.repository.mongo.ArchiveRepository;
+import org.junit.Test;
+
+public class TestArchiveIdCache {
+
+    private final ArchiveRepository archiveRepository = mock(ArchiveRepository.class);
+
+    private final ArchiveIdCache cache = new ArchiveIdCache(archiveRepository, "online", 100, 60);
+
+    @Test
+    public void cachedIdIsUsedWhileTheArchivePointsToIt() {
+        when(archiveRepository.findByPid("pid-1")).thenReturn(new Archive("pid-1", "on-1", "off-1", null, null));
+        cache.put("pid-1", "off-1", "mirror", "online");
+
+        assertEquals("off-1", cache.get("pid-1", "mirror", "online"));
+    }
+
+    @Test
+    public void archiveDeletedByAnotherInstanceIsNotReturned() {
+        when(archiveRepository.findByPid("pid-1")).thenReturn(new Archive("pid-1", "on-1", "off-1", null, null));
+        cache.put("pid-1", "on-1", "mirror", "online");
+
+        // e.g. a worker imported a new version and deleted the online archive
+        when(archiveRepository.findByPid("pid-1")).thenReturn(new Archive("pid-1", null, "off-1", null, null));
+
+        assertNull(cache.get("pid-1", "mirror", "online"));
+    }
+
+    @Test
+    public void onlineArchiveIsTakenFromMongo() {
+        when(archiveRepository.findByPid("pid-1")).thenReturn(new Archive("pid-1", "on-1", "off-1", null, null));
+
+        assertEquals("on-1", cache.get("pid-1", "online", "mirror"));
+    }
+}
@@ -0,0 +1,137 @@
+package de.ocrd.olahd.component;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import de.ocrd.olahd.utils.ChecksumUtils;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.client.HttpServerErrorException;
+
+/**
+ * Bulk import against a fake CDSTAR
+ */
+public class TestCdstarBulkImport {
+
+    private MockWebServer cdstar;
+
+    private CdstarClient client;
+
+    private Path bagDir;
+
+    private List<Path> files;
+
+    @Before
+    public void setUp() throws IOException {
+        cdstar = new MockWebServer();
+        cdstar.start();
+        client = new CdstarClient(4, 60, 8, 8, false, 5, 5, 5, 5, 5);
+
+        bagDir = Files.createTempDirectory("olahd-test-bag");
+        files = Arrays.asList(
+            Files.write(bagDir.resolve("bagit.txt"), "BagIt-Version: 1.0".getBytes(StandardCharsets.UTF_8)),
+            Files.write(Files.createDirectories(bagDir.resolve("data")).resolve("mets.xml"),
+                "<mets/>".getBytes(StandardCharsets.UTF_8)),
+            Files.write(bagDir.resolve("data").resolve("page.jpg"), "jpeg".getBytes(StandardCharsets.UTF_8))
+        );
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.destroy();
+        cdstar.shutdown();
+        FileUtils.deleteDirectory(bagDir.toFile());
+    }
+
+    private CdstarBulkImport bulkImport(String mode) {
+        return new CdstarBulkImport(client, cdstar.url("/v3/").toString(), "user", "pass", "vault", mode, 2,
+            new ZipCompressionPolicy("image/jpeg", "jpg", 9, -1)
+        );
+    }
+
+    @Test
+    public void filesAreStreamedAsZip() throws Exception {
+        cdstar.enqueue(new MockResponse().setResponseCode(200));
+
+        assertTrue(bulkImport("bulk").importFiles("tx-1", "archive-1", bagDir, files, Collections.emptyMap()));
+
+        RecordedRequest request = cdstar.takeRequest();
+        assertEquals("PUT", request.getMethod());
+        assertEquals("/v3/vault/archive-1", request.getPath());
+        assertEquals("tx-1", request.getHeader("X-Transaction"));
+        assertEquals("application/zip", request.getHeader("Content-Type"));
+
+        Map<String, String> entries = new HashMap<>();
+        Map<String, Integer> methods = new HashMap<>();
+        try (ZipInputStream zip = new ZipInputStream(request.getBody().inputStream())) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                entries.put(entry.getName(), new String(zip.readAllBytes(), StandardCharsets.UTF_8));
+                methods.put(entry.getName(), entry.getMethod());
+            }
+        }
+        assertEquals(3, entries.size());
+        assertEquals("<mets/>", entries.get("data/mets.xml"));
+        assertEquals("BagIt-Version: 1.0", entries.get("bagit.txt"));
+        assertEquals("jpeg", entries.get("data/page.jpg"));
+        // Images are stored, text is deflated
+        assertEquals(ZipEntry.STORED, methods.get("data/page.jpg"));
+        assertEquals(ZipEntry.DEFLATED, methods.get("data/mets.xml"));
+    }
+
+    @Test
+    public void unsupportedVaultFallsBack() throws Exception {
+        CdstarBulkImport bulkImport = bulkImport("auto");
+        assertTrue(bulkImport.isEnabled(2));
+        cdstar.enqueue(new MockResponse().setResponseCode(415));
+
+        assertFalse(bulkImport.importFiles("tx-1", "archive-1", bagDir, files, Collections.emptyMap()));
+        assertFalse(bulkImport.isEnabled(2));
+    }
+
+    @Test
+    public void serverErrorIsThrown() {
+        cdstar.enqueue(new MockResponse().setResponseCode(500));
+
+        assertThrows(HttpServerErrorException.class, () -> bulkImport("bulk").importFiles(
+            "tx-1", "archive-1", bagDir, files, Collections.emptyMap()
+        ));
+    }
+
+    @Test
+    public void wrongChecksumFailsTheRequest() {
+        cdstar.enqueue(new MockResponse().setResponseCode(200));
+        Map<String, String> checksums = new HashMap<>();
+        checksums.put("data/mets.xml", ChecksumUtils.toHex(ChecksumUtils.newSha512().digest(new byte[0])));
+
+        assertThrows(RuntimeException.class, () -> bulkImport("bulk").importFiles(
+            "tx-1", "archive-1", bagDir, files, checksums
+        ));
+    }
+
+    @Test
+    public void modeSelectsBulkImport() {
+        assertFalse(bulkImport("files").isEnabled(1000));
+        assertTrue(bulkImport("bulk").isEnabled(1));
+        assertFalse(bulkImport("auto").isEnabled(1));
+        assertTrue(bulkImport("auto").isEnabled(2));
+    }
+}
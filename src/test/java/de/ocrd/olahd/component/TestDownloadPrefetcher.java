@@ -0,0 +1,122 @@
+package de.ocrd.olahd.component;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import de.ocrd.olahd.utils.SpillBuffer;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.FileSystemUtils;
+
+public class TestDownloadPrefetcher {
+
+    private static final int WINDOW = 4;
+
+    private static final List<String> PATHS = List.of("0", "1", "2", "3", "4", "5");
+
+    private Path spillDir;
+
+    private DownloadPrefetcher prefetcher;
+
+    /** Counted down by every fetch after its buffer is spilled */
+    private final CountDownLatch fetching = new CountDownLatch(WINDOW);
+
+    /** Holds back the fetches till the download was given up */
+    private final CountDownLatch proceed = new CountDownLatch(1);
+
+    /** Hold back the first file too, otherwise it is fetched right away */
+    private volatile boolean holdFirst;
+
+    @Before
+    public void setUp() throws IOException {
+        spillDir = Files.createTempDirectory("olahd-prefetch-test");
+        // Every file is larger than the threshold, so every buffer is spilled to disk
+        prefetcher = new DownloadPrefetcher(WINDOW, WINDOW, 10, spillDir.toString());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        prefetcher.destroy();
+        FileSystemUtils.deleteRecursively(spillDir.toFile());
+    }
+
+    @Test
+    public void abortedDownloadLeavesNoSpillFiles() throws Exception {
+        DownloadPrefetcher.Write write = (path, buffer) -> {
+            throw new IOException("client aborted");
+        };
+        IOException e = assertThrows(IOException.class, () -> prefetcher.fetchInOrder(PATHS, this::fetch, write));
+        assertEquals("client aborted", e.getMessage());
+
+        // Let the fetches running during the abort finish
+        proceed.countDown();
+
+        assertEquals(0, awaitSpillFilesDeleted());
+    }
+
+    @Test
+    public void interruptedDownloadLeavesNoSpillFiles() throws Exception {
+        holdFirst = true;
+        AtomicReference<Exception> error = new AtomicReference<>();
+        Thread download = new Thread(() -> {
+            try {
+                prefetcher.fetchInOrder(PATHS, this::fetch, (path, buffer) -> { });
+            } catch (IOException e) {
+                error.set(e);
+            }
+        });
+        download.start();
+        // Interrupt the download while it waits for the first file and the whole window is being fetched
+        assertTrue(fetching.await(10, TimeUnit.SECONDS));
+        download.interrupt();
+        download.join(10000);
+        assertTrue(error.get() instanceof InterruptedIOException);
+
+        proceed.countDown();
+
+        assertEquals(0, awaitSpillFilesDeleted());
+    }
+
+    private SpillBuffer fetch(String path, SpillBuffer buffer) throws IOException {
+        buffer.write(new byte[100], 0, 100);
+        fetching.countDown();
+        if (holdFirst || !"0".equals(path)) {
+            try {
+                proceed.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Wait till the fetches are finished and have deleted their spill files, at most 5 seconds
+     *
+     * @return number of spill files left
+     */
+    private long awaitSpillFilesDeleted() throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (true) {
+            long count;
+            try (Stream<Path> files = Files.list(spillDir)) {
+                count = files.count();
+            }
+            if (count == 0 || System.nanoTime() > deadline) {
+                return count;
+            }
+            Thread.sleep(50);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package de.ocrd.olahd.component;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import de.ocrd.olahd.component.ExecutorWrapper.TaskClass;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class TestExecutorWrapper {
+
+    @Test
+    public void usersTakeTurnsAndClassesAreServedByPriority() throws Exception {
+        ExecutorWrapper executor = new ExecutorWrapper(1, 0, 0, 0, 0);
+        List<String> order = new CopyOnWriteArrayList<>();
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(7);
+        try {
+            // Occupy the only thread so that all following tasks are queued
+            executor.submit(TaskClass.MAINTENANCE, "admin", () -> await(blocker));
+
+            for (String task : List.of("bulk-1", "bulk-2", "bulk-3")) {
+                executor.submit(TaskClass.INTERACTIVE_IMPORT, "bulk", () -> record(order, task, done));
+            }
+            executor.submit(TaskClass.INTERACTIVE_IMPORT, "single", () -> record(order, "single-1", done));
+            executor.submit(TaskClass.MAINTENANCE, "admin", () -> record(order, "maintenance", done));
+            executor.submit(TaskClass.BULK_IMPORT, "bulk", () -> record(order, "bulk-4", done));
+            executor.submit(TaskClass.OPERANDI, "single", () -> record(order, "operandi", done));
+            blocker.countDown();
+
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(
+                List.of("bulk-1", "single-1", "bulk-2", "bulk-3", "operandi", "bulk-4", "maintenance"), order
+            );
+        } finally {
+            blocker.countDown();
+            executor.destroy();
+        }
+    }
+
+    @Test
+    public void classLimitLeavesThreadsForOtherClasses() throws Exception {
+        ExecutorWrapper executor = new ExecutorWrapper(2, 0, 0, 1, 0);
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch operandiDone = new CountDownLatch(1);
+        try {
+            executor.submit(TaskClass.BULK_IMPORT, "bulk", () -> await(blocker));
+            executor.submit(TaskClass.BULK_IMPORT, "bulk", () -> await(blocker));
+            executor.submit(TaskClass.OPERANDI, "single", operandiDone::countDown);
+
+            assertTrue(operandiDone.await(10, TimeUnit.SECONDS));
+        } finally {
+            blocker.countDown();
+            executor.destroy();
+        }
+    }
+
+    private static void record(List<String> order, String task, CountDownLatch done) {
+        order.add(task);
+        done.countDown();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package de.ocrd.olahd.component;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import de.ocrd.olahd.domain.PidUpdate;
+import java.io.IOException;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpServerErrorException;
+
+public class TestPidWriteBehind {
+
+    @Test
+    public void appendedDataIsKeptAfterWrite() {
+        PidUpdate written = new PidUpdate("pid-1", null, entries("NEXT-VERSION=pid-2"));
+        PidUpdate current = new PidUpdate("pid-1", null, entries("NEXT-VERSION=pid-2", "NEXT-VERSION=pid-3"));
+
+        assertEquals(List.of("NEXT-VERSION=pid-3"), strings(current.appendedAfter(written)));
+    }
+
+    @Test
+    public void replacedDataIsWrittenAgain() {
+        PidUpdate written = new PidUpdate("pid-1", null, entries("NEXT-VERSION=pid-2"));
+        PidUpdate current = new PidUpdate("pid-1", entries("URL=new"), entries("NEXT-VERSION=pid-3"));
+
+        assertNull(current.appendedAfter(written));
+        assertEquals(
+            List.of("URL=new", "NEXT-VERSION=pid-3"),
+            current.getData().stream().map(Object::toString).collect(Collectors.toList())
+        );
+    }
+
+    @Test
+    public void backoffIsDoubledUpToTheMax() {
+        assertEquals(5, PidWriteBehind.backoffSeconds(1, 600));
+        assertEquals(10, PidWriteBehind.backoffSeconds(2, 600));
+        assertEquals(320, PidWriteBehind.backoffSeconds(7, 600));
+        assertEquals(600, PidWriteBehind.backoffSeconds(8, 600));
+        assertEquals(600, PidWriteBehind.backoffSeconds(100, 600));
+    }
+
+    @Test
+    public void missingPidIsRecognized() {
+        // EpicPidService reports every failed response as HttpServerErrorException with the status of the response
+        assertTrue(PidWriteBehind.isNotFound(new HttpServerErrorException(HttpStatus.NOT_FOUND)));
+        assertTrue(PidWriteBehind.isNotFound(new HttpServerErrorException(HttpStatus.GONE)));
+        assertFalse(PidWriteBehind.isNotFound(new HttpServerErrorException(HttpStatus.INTERNAL_SERVER_ERROR)));
+        assertFalse(PidWriteBehind.isNotFound(new IOException("timeout")));
+    }
+
+    private static List<PidUpdate.Entry> entries(String... pairs) {
+        return List.of(pairs).stream()
+            .map(x -> new PidUpdate.Entry(x.split("=")[0], x.split("=")[1]))
+            .collect(Collectors.toList());
+    }
+
+    private static List<String> strings(List<PidUpdate.Entry> entries) {
+        return entries.stream().map(x -> x.getKey() + "=" + x.getValue()).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,64 @@
+package de.ocrd.olahd.component;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+import org.junit.Test;
+
+public class TestZipCompressionPolicy {
+
+    private final ZipCompressionPolicy policy = new ZipCompressionPolicy(
+        "image/jpeg,image/png", "jpg,png", 9, 1
+    );
+
+    @Test
+    public void compressedImagesAreStored() {
+        assertTrue(policy.isStored("data/OCR-D-IMG/0001.jpg", null));
+        assertTrue(policy.isStored("data/OCR-D-IMG/0001", "image/png; charset=binary"));
+        assertTrue(policy.isStored("data/OCR-D-IMG/0001.PNG", "application/octet-stream"));
+        assertFalse(policy.isStored("data/OCR-D-IMG/0001.tif", "image/tiff"));
+        assertFalse(policy.isStored("data/mets.xml", "application/xml"));
+    }
+
+    @Test
+    public void textUsesTextLevel() {
+        assertEquals(9, policy.level("data/mets.xml", null));
+        assertEquals(9, policy.level("data/page", "application/vnd.prima.page+xml"));
+        assertEquals(9, policy.level("bag-info", "text/plain"));
+        assertEquals(1, policy.level("data/OCR-D-IMG/0001.tif", "image/tiff"));
+    }
+
+    @Test
+    public void storedEntryIsReadable() throws Exception {
+        byte[] content = "not really a jpeg".getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            policy.putNextEntry(zip, "img.jpg", "image/jpeg", content.length, crc.getValue());
+            zip.write(content);
+            zip.closeEntry();
+            policy.putNextEntry(zip, "mets.xml", "application/xml", 0, 0);
+            zip.write(content);
+            zip.closeEntry();
+        }
+
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            ZipEntry first = zip.getNextEntry();
+            assertEquals(ZipEntry.STORED, first.getMethod());
+            assertEquals("not really a jpeg", new String(zip.readAllBytes(), StandardCharsets.UTF_8));
+            ZipEntry second = zip.getNextEntry();
+            assertEquals(ZipEntry.DEFLATED, second.getMethod());
+            assertEquals("not really a jpeg", new String(zip.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+}
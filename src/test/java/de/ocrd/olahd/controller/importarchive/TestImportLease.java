@@ -0,0 +1,71 @@
+package de.ocrd.olahd.controller.importarchive;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+
+public class TestImportLease {
+
+    @Test
+    public void lostLeaseInterruptsTheImport() throws Exception {
+        ImportLease lease = new ImportLease(() -> true);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        Thread runner = runImport(lease, false, interrupted);
+
+        lease.lose();
+        runner.join(5000);
+
+        assertTrue(interrupted.get());
+        assertFalse(lease.check());
+    }
+
+    @Test
+    public void committingImportIsNotInterrupted() throws Exception {
+        ImportLease lease = new ImportLease(() -> true);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        Thread runner = runImport(lease, true, interrupted);
+
+        lease.lose();
+        runner.join(5000);
+
+        assertFalse(interrupted.get());
+        assertTrue(lease.isLost());
+    }
+
+    @Test
+    public void leaseIsLostIfItCannotBeRenewed() {
+        ImportLease lease = new ImportLease(() -> false);
+
+        assertFalse(lease.checkBeforeCommit());
+        assertTrue(lease.isLost());
+        assertFalse(lease.started());
+    }
+
+    /**
+     * Start a thread which runs an import for a second, or till it is interrupted
+     */
+    private static Thread runImport(ImportLease lease, boolean commit, AtomicBoolean interrupted) throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        Thread runner = new Thread(() -> {
+            lease.started();
+            if (commit) {
+                lease.checkBeforeCommit();
+            }
+            running.countDown();
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+            } finally {
+                lease.finished();
+            }
+        });
+        runner.start();
+        running.await(5, TimeUnit.SECONDS);
+        return runner;
+    }
+}
@@ -0,0 +1,59 @@
+package de.ocrd.olahd.controller.importarchive;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import de.ocrd.olahd.exceptions.MetsInvalidException;
+import gov.loc.repository.bagit.domain.Bag;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Test;
+import org.springframework.util.FileSystemUtils;
+
+public class TestMetsValidation {
+
+    @Test
+    public void validMetsPasses() throws Exception {
+        Path bagDir = createBag(readTestMets());
+        try {
+            Validation.validateMetsfileSchema(bag(bagDir));
+        } finally {
+            FileSystemUtils.deleteRecursively(bagDir);
+        }
+    }
+
+    @Test
+    public void invalidMetsIsReported() throws Exception {
+        Path bagDir = createBag(readTestMets().replace("<mets:fileSec>", "<mets:unknown/><mets:fileSec>"));
+        try {
+            MetsInvalidException ex = assertThrows(
+                MetsInvalidException.class, () -> Validation.validateMetsfileSchema(bag(bagDir))
+            );
+            assertTrue(ex.getMetsErrorMessage().startsWith("cvc-complex-type"), ex.getMetsErrorMessage());
+        } finally {
+            FileSystemUtils.deleteRecursively(bagDir);
+        }
+    }
+
+    private static String readTestMets() throws IOException {
+        try (InputStream in = TestMetsValidation.class.getClassLoader().getResourceAsStream("test-mets.xml")) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static Path createBag(String mets) throws IOException {
+        Path bagDir = Files.createTempDirectory("olahd-test-bag");
+        Files.createDirectories(bagDir.resolve("data"));
+        Files.writeString(bagDir.resolve("data").resolve("mets.xml"), mets);
+        return bagDir;
+    }
+
+    private static Bag bag(Path bagDir) {
+        Bag bag = new Bag();
+        bag.setRootDir(bagDir);
+        return bag;
+    }
+}
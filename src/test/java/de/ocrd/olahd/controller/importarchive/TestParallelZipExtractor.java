@@ -0,0 +1,101 @@
+package de.ocrd.olahd.controller.importarchive;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+public class TestParallelZipExtractor {
+
+    private static final FileTime MODIFIED = FileTime.from(Instant.parse("2020-01-02T03:04:06Z"));
+
+    @Test
+    public void allEntriesAreExtractedWithTimestamps() throws Exception {
+        Path dir = Files.createTempDirectory("olahd-test-extract");
+        try {
+            Path zip = dir.resolve("bag.zip");
+            try (OutputStream out = Files.newOutputStream(zip); ZipOutputStream zipOut = new ZipOutputStream(out)) {
+                zipOut.putNextEntry(new ZipEntry("data/"));
+                for (int i = 0; i < 500; i++) {
+                    ZipEntry entry = new ZipEntry("data/page-" + i + ".xml");
+                    entry.setLastModifiedTime(MODIFIED);
+                    zipOut.putNextEntry(entry);
+                    zipOut.write(("<page>" + i + "</page>").getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            Path destination = dir.resolve("bag_extracted");
+
+            ParallelZipExtractor.extract(zip, destination);
+
+            try (var files = Files.list(destination.resolve("data"))) {
+                assertEquals(500, files.count());
+            }
+            Path page = destination.resolve("data/page-123.xml");
+            assertEquals("<page>123</page>", Files.readString(page));
+            assertEquals(MODIFIED.toMillis(), Files.getLastModifiedTime(page).toMillis());
+        } finally {
+            FileUtils.deleteDirectory(dir.toFile());
+        }
+    }
+
+    @Test
+    public void entriesOutsideOfDestinationAreRejected() throws Exception {
+        Path dir = Files.createTempDirectory("olahd-test-extract");
+        try {
+            Path zip = dir.resolve("evil.zip");
+            try (OutputStream out = Files.newOutputStream(zip); ZipOutputStream zipOut = new ZipOutputStream(out)) {
+                zipOut.putNextEntry(new ZipEntry("../evil.txt"));
+                zipOut.write("evil".getBytes(StandardCharsets.UTF_8));
+            }
+
+            assertThrows(ZipException.class, () -> ParallelZipExtractor.extract(zip, dir.resolve("extracted")));
+            assertFalse(Files.exists(dir.resolve("evil.txt")));
+        } finally {
+            FileUtils.deleteDirectory(dir.toFile());
+        }
+    }
+
+    @Test
+    public void nothingIsWrittenAfterAFailedExtraction() throws Exception {
+        Path dir = Files.createTempDirectory("olahd-test-extract");
+        try {
+            Path zip = dir.resolve("bag.zip");
+            try (OutputStream out = Files.newOutputStream(zip); ZipOutputStream zipOut = new ZipOutputStream(out)) {
+                // A file with the name of a directory cannot be written
+                zipOut.putNextEntry(new ZipEntry("data/"));
+                zipOut.putNextEntry(new ZipEntry("data"));
+                zipOut.write("fails".getBytes(StandardCharsets.UTF_8));
+                for (int i = 0; i < 2000; i++) {
+                    zipOut.putNextEntry(new ZipEntry("data/page-" + i + ".xml"));
+                    zipOut.write(("<page>" + i + "</page>").getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            Path destination = dir.resolve("bag_extracted");
+
+            assertThrows(IOException.class, () -> ParallelZipExtractor.extract(zip, destination));
+
+            long extracted;
+            try (var files = Files.list(destination.resolve("data"))) {
+                extracted = files.count();
+            }
+            Thread.sleep(200);
+            try (var files = Files.list(destination.resolve("data"))) {
+                assertEquals(extracted, files.count());
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir.toFile());
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package de.ocrd.olahd.controller.importarchive;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import de.ocrd.olahd.utils.ChecksumUtils;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+public class TestStreamingZipExtractor {
+
+    @Test
+    public void entriesAreExtractedWithChecksums() throws Exception {
+        byte[] zip = zip("bagit.txt", "BagIt-Version: 1.0", "data/mets.xml", "<mets/>");
+        Path dir = Files.createTempDirectory("olahd-test-extract");
+        try {
+            Map<String, String> checksums = StreamingZipExtractor.extract(new ByteArrayInputStream(zip), dir);
+
+            assertEquals(2, checksums.size());
+            assertEquals("<mets/>", Files.readString(dir.resolve("data/mets.xml")));
+            assertEquals(sha512("<mets/>"), checksums.get("data/mets.xml"));
+            assertEquals(sha512("BagIt-Version: 1.0"), checksums.get("bagit.txt"));
+        } finally {
+            FileUtils.deleteDirectory(dir.toFile());
+        }
+    }
+
+    @Test
+    public void entriesOutsideOfDestinationAreRejected() throws Exception {
+        byte[] zip = zip("../evil.txt", "evil");
+        Path dir = Files.createTempDirectory("olahd-test-extract");
+        try {
+            assertThrows(ZipException.class, () -> StreamingZipExtractor.extract(new ByteArrayInputStream(zip), dir));
+        } finally {
+            FileUtils.deleteDirectory(dir.toFile());
+        }
+    }
+
+    /** Create a zip from pairs of name and content */
+    private static byte[] zip(String... entries) throws IOException {
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(res)) {
+            for (int i = 0; i < entries.length; i += 2) {
+                zip.putNextEntry(new ZipEntry(entries[i]));
+                zip.write(entries[i + 1].getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+        return res.toByteArray();
+    }
+
+    private static String sha512(String content) {
+        return ChecksumUtils.toHex(ChecksumUtils.newSha512().digest(content.getBytes(StandardCharsets.UTF_8)));
+    }
+}
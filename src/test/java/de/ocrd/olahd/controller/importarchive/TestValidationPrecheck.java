@@ -0,0 +1,70 @@
+package de.ocrd.olahd.controller.importarchive;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import de.ocrd.olahd.Constants;
+import de.ocrd.olahd.exceptions.OcrdzipInvalidException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.Test;
+
+public class TestValidationPrecheck {
+
+    private static final String METS = "<mets/>";
+
+    @Test
+    public void validZipPasses() throws Exception {
+        Path zip = createZip("Ocrd-Identifier: id-1\nPayload-Oxum: " + METS.length() + ".1\n");
+        try {
+            Validation.precheckOcrdzip(zip);
+        } finally {
+            Files.delete(zip);
+        }
+    }
+
+    @Test
+    public void missingKeysAndWrongOxumAreReported() throws Exception {
+        Path zip = createZip("Ocrd-Mets: other.xml\nPayload-Oxum: 1000.\n 7\n");
+        try {
+            OcrdzipInvalidException ex = assertThrows(
+                OcrdzipInvalidException.class, () -> Validation.precheckOcrdzip(zip)
+            );
+            List<String> errors = ex.getErrors();
+
+            assertEquals(3, errors.size(), String.join(", ", errors));
+            assertEquals("bag-info.txt must contain key: 'Ocrd-Identifier'", errors.get(0));
+            assertEquals("'Ocrd-Mets' is set, but specified file not existing", errors.get(1));
+            assertEquals("'Payload-Oxum' of bag-info.txt (1000. 7) does not match the payload (7.1)", errors.get(2));
+        } finally {
+            Files.delete(zip);
+        }
+    }
+
+    /** Create an OCRD-ZIP with one payload file (data/mets.xml) and the given bag-info.txt */
+    private static Path createZip(String bagInfo) throws IOException {
+        Map<String, String> entries = new LinkedHashMap<>();
+        entries.put("bagit.txt", "BagIt-Version: 1.0\nTag-File-Character-Encoding: UTF-8\n");
+        entries.put("bag-info.txt", bagInfo);
+        entries.put(Constants.PAYLOAD_MANIFEST_NAME, "abc  data/mets.xml\n");
+        entries.put(Constants.TAG_MANIFEST_NAME, "abc  bag-info.txt\n");
+        entries.put("data/mets.xml", METS);
+
+        Path zip = Files.createTempFile("olahd-test", ".zip");
+        try (OutputStream out = Files.newOutputStream(zip); ZipOutputStream zipOut = new ZipOutputStream(out)) {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                zipOut.putNextEntry(new ZipEntry(entry.getKey()));
+                zipOut.write(entry.getValue().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return zip;
+    }
+}
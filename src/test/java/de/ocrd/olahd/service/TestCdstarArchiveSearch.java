@@ -0,0 +1,102 @@
+package de.ocrd.olahd.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import de.ocrd.olahd.component.ArchiveIdCache;
+import de.ocrd.olahd.component.CdstarClient;
+import de.ocrd.olahd.repository.mongo.ArchiveRepository;
+import java.io.IOException;
+import okhttp3.HttpUrl;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Search of the archives of a PID against a fake CDSTAR
+ */
+public class TestCdstarArchiveSearch {
+
+    private MockWebServer cdstar;
+
+    private CdstarClient client;
+
+    private CdstarService service;
+
+    @Before
+    public void setUp() throws IOException {
+        cdstar = new MockWebServer();
+        cdstar.start();
+        client = new CdstarClient(4, 60, 8, 8, false, 5, 5, 5, 5, 5);
+
+        ArchiveIdCache cache = new ArchiveIdCache(mock(ArchiveRepository.class), "online", 100, 60);
+        service = new CdstarService(client, null, cache, null, null, null, null);
+        ReflectionTestUtils.setField(service, "url", cdstar.url("/v3/").toString());
+        ReflectionTestUtils.setField(service, "username", "user");
+        ReflectionTestUtils.setField(service, "password", "pass");
+        ReflectionTestUtils.setField(service, "vault", "vault");
+        ReflectionTestUtils.setField(service, "onlineProfile", "online");
+        ReflectionTestUtils.setField(service, "offlineProfile", "offline");
+        ReflectionTestUtils.setField(service, "mirrorProfile", "mirror");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.destroy();
+        cdstar.shutdown();
+    }
+
+    @Test
+    public void allProfilesAreSearchedWithOneRequest() throws Exception {
+        cdstar.enqueue(json(
+            "{\"total\": 2, \"count\": 2, \"hits\": ["
+                + "{\"id\": \"archive-online\", \"type\": \"archive\", \"score\": 1.0,"
+                + " \"fields\": {\"profile\": \"online\", \"state\": \"open\"}},"
+                + "{\"id\": \"archive-mirror\", \"type\": \"archive\", \"score\": 1.0,"
+                + " \"fields\": {\"profile\": \"mirror\", \"state\": \"open\"}}"
+            + "]}"
+        ));
+        cdstar.enqueue(json("{\"id\": \"archive-mirror\"}"));
+
+        assertEquals("{\"id\": \"archive-mirror\"}", service.getArchiveInfo("pid-1", false, 0, 0, false));
+
+        HttpUrl search = cdstar.takeRequest().getRequestUrl();
+        assertEquals("/v3/vault", search.encodedPath());
+        assertEquals("dcIdentifier:\"pid-1\" AND profile:(mirror OR online OR offline)", search.queryParameter("q"));
+        assertEquals("profile,state", search.queryParameter("fields"));
+        // The archive of the profile with the highest priority, no search per profile
+        assertEquals("/v3/vault/archive-mirror?with=meta", cdstar.takeRequest().getPath());
+        assertEquals(2, cdstar.getRequestCount());
+    }
+
+    @Test
+    public void stateOfTheHitIsUsedForTheExport() throws Exception {
+        cdstar.enqueue(json(
+            "{\"total\": 1, \"count\": 1, \"hits\": ["
+                + "{\"id\": \"archive-mirror\", \"type\": \"archive\", \"score\": 1.0,"
+                + " \"fields\": {\"profile\": \"mirror\", \"state\": \"open\"}}"
+            + "]}"
+        ));
+        cdstar.enqueue(new MockResponse().setResponseCode(200).setBody("zip"));
+
+        try (Response response = service.export("pid-1", "full", false)) {
+            assertEquals("zip", response.body().string());
+        }
+
+        cdstar.takeRequest();
+        // Exported right away, the state is not requested separately
+        RecordedRequest export = cdstar.takeRequest();
+        assertTrue(export.getPath().startsWith("/v3/vault/archive-mirror?export=zip"));
+        assertEquals(2, cdstar.getRequestCount());
+    }
+
+    private static MockResponse json(String body) {
+        return new MockResponse().setResponseCode(200).setHeader("Content-Type", "application/json").setBody(body);
+    }
+}
@@ -0,0 +1,71 @@
+package de.ocrd.olahd.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import de.ocrd.olahd.Constants;
+import de.ocrd.olahd.exceptions.BagitChecksumException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+public class TestBagitManifestValidation {
+
+    @Test
+    public void validBagHasNoErrors() throws Exception {
+        Path bag = createBag(200, -1);
+        try {
+            assertTrue(new BagitManifestValidation(bag).validate(false).isEmpty());
+        } finally {
+            FileUtils.deleteDirectory(bag.toFile());
+        }
+    }
+
+    @Test
+    public void firstMismatchInManifestOrderIsReported() throws Exception {
+        Path bag = createBag(200, 17);
+        try {
+            List<String> errors = new BagitManifestValidation(bag).validate(false);
+
+            assertEquals(1, errors.size());
+            assertEquals("Checksum of file 'data/file-17.txt' in manifest '" + Constants.PAYLOAD_MANIFEST_NAME
+                + "' does not match", errors.get(0));
+            assertThrows(BagitChecksumException.class, () -> new BagitManifestValidation(bag).validate(true));
+        } finally {
+            FileUtils.deleteDirectory(bag.toFile());
+        }
+    }
+
+    /**
+     * Create a bag with payload and tag manifest
+     *
+     * @param files   - number of payload files
+     * @param corrupt - index of the file with a wrong checksum in the manifest, -1 for none
+     */
+    private static Path createBag(int files, int corrupt) throws IOException {
+        Path bag = Files.createTempDirectory("olahd-test-bag");
+        Path data = Files.createDirectories(bag.resolve("data"));
+        List<String> payloadManifest = new ArrayList<>();
+        for (int i = 0; i < files; i++) {
+            byte[] content = ("content of file " + i).getBytes(StandardCharsets.UTF_8);
+            Files.write(data.resolve("file-" + i + ".txt"), content);
+            String checksum = ChecksumUtils.toHex(ChecksumUtils.newSha512().digest(content));
+            if (i == corrupt) {
+                checksum = checksum.replace(checksum.charAt(0), checksum.charAt(0) == '0' ? '1' : '0');
+            }
+            payloadManifest.add(checksum + "  data/file-" + i + ".txt");
+        }
+        Path manifest = Files.write(bag.resolve(Constants.PAYLOAD_MANIFEST_NAME), payloadManifest);
+
+        String manifestChecksum = ChecksumUtils.toHex(ChecksumUtils.newSha512().digest(Files.readAllBytes(manifest)));
+        Files.write(bag.resolve(Constants.TAG_MANIFEST_NAME),
+            List.of(manifestChecksum + "  " + Constants.PAYLOAD_MANIFEST_NAME));
+        return bag;
+    }
+}
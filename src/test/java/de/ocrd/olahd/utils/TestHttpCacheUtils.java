@@ -0,0 +1,59 @@
+package de.ocrd.olahd.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+
+public class TestHttpCacheUtils {
+
+    @Test
+    public void immutableEtagDependsOnAllParts() {
+        String etag = HttpCacheUtils.immutableEtag("export/file", "pid-1", "data/mets.xml");
+
+        assertTrue(etag.startsWith("\"") && etag.endsWith("\""), "ETag must be quoted: " + etag);
+        assertEquals(etag, HttpCacheUtils.immutableEtag("export/file", "pid-1", "data/mets.xml"));
+        assertNotEquals(etag, HttpCacheUtils.immutableEtag("export/file", "pid-2", "data/mets.xml"));
+        assertNotEquals(etag, HttpCacheUtils.immutableEtag("iiif/image", "pid-1", "data/mets.xml"));
+    }
+
+    @Test
+    public void matchingIfRangeKeepsRange() {
+        String etag = HttpCacheUtils.immutableEtag("pid", "path");
+        HttpHeaders request = new HttpHeaders();
+        request.set(HttpHeaders.RANGE, "bytes=0-99");
+        request.set(HttpHeaders.IF_RANGE, etag);
+
+        HttpHeaders res = HttpCacheUtils.rangeHeaders(request, etag);
+
+        assertEquals("bytes=0-99", res.getFirst(HttpHeaders.RANGE));
+        assertFalse(res.containsKey(HttpHeaders.IF_RANGE));
+    }
+
+    @Test
+    public void otherIfRangeDropsRange() {
+        HttpHeaders request = new HttpHeaders();
+        request.set(HttpHeaders.RANGE, "bytes=0-99");
+        request.set(HttpHeaders.IF_RANGE, "\"something-else\"");
+
+        HttpHeaders res = HttpCacheUtils.rangeHeaders(request, HttpCacheUtils.immutableEtag("pid", "path"));
+
+        assertFalse(res.containsKey(HttpHeaders.RANGE));
+        assertFalse(res.containsKey(HttpHeaders.IF_RANGE));
+    }
+
+    @Test
+    public void unknownEtagForwardsHeaders() {
+        HttpHeaders request = new HttpHeaders();
+        request.set(HttpHeaders.RANGE, "bytes=0-99");
+        request.set(HttpHeaders.IF_RANGE, "\"something-else\"");
+
+        HttpHeaders res = HttpCacheUtils.rangeHeaders(request, null);
+
+        assertEquals("bytes=0-99", res.getFirst(HttpHeaders.RANGE));
+        assertEquals("\"something-else\"", res.getFirst(HttpHeaders.IF_RANGE));
+    }
+}
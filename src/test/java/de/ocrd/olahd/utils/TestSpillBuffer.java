@@ -0,0 +1,67 @@
+package de.ocrd.olahd.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.CRC32;
+import org.junit.Test;
+
+public class TestSpillBuffer {
+
+    @Test
+    public void smallContentStaysInMemory() throws Exception {
+        byte[] content = randomBytes(100);
+        Path dir = Files.createTempDirectory("spill-test");
+
+        try (SpillBuffer buffer = new SpillBuffer(1024, dir)) {
+            buffer.readFrom(new ByteArrayInputStream(content));
+
+            assertFalse(buffer.isSpilled());
+            assertContent(content, buffer);
+        } finally {
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void largeContentIsSpilledAndDeletedOnClose() throws Exception {
+        byte[] content = randomBytes(100_000);
+        Path dir = Files.createTempDirectory("spill-test");
+
+        try (SpillBuffer buffer = new SpillBuffer(1024, dir)) {
+            buffer.readFrom(new ByteArrayInputStream(content));
+
+            assertTrue(buffer.isSpilled());
+            assertContent(content, buffer);
+        }
+        try {
+            assertEquals(0, Files.list(dir).count(), "temporary file must be deleted");
+        } finally {
+            Files.delete(dir);
+        }
+    }
+
+    private static void assertContent(byte[] expected, SpillBuffer buffer) throws Exception {
+        CRC32 crc = new CRC32();
+        crc.update(expected);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        buffer.writeTo(out);
+
+        assertEquals(expected.length, buffer.getSize());
+        assertEquals(crc.getValue(), buffer.getCrc());
+        assertArrayEquals(expected, out.toByteArray());
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] res = new byte[size];
+        new Random(42).nextBytes(res);
+        return res;
+    }
+}